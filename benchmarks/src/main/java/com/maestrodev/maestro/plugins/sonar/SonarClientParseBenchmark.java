@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing the <code>/api/metrics</code> and <code>/api/resources</code> responses, for catalogues of
+ * 50 to 5,000 metrics, and of streaming resource responses of 1 to 1,000 components.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SonarClientParseBenchmark {
+
+    /**
+     * A metric catalogue, with the measures of a project for up to 100 of its metrics
+     */
+    @State(Scope.Benchmark)
+    public static class Catalogue {
+        @Param({"50", "500", "5000"})
+        public int metrics;
+
+        byte[] metricsJson;
+        byte[] resourceJson;
+
+        @Setup
+        public void setUp() {
+            metricsJson = SonarFixtures.metrics(metrics);
+            resourceJson = SonarFixtures.resources(1, Math.min(metrics, 100));
+        }
+    }
+
+    /**
+     * The components of a project, 20 measures each
+     */
+    @State(Scope.Benchmark)
+    public static class Components {
+        @Param({"1", "100", "1000"})
+        public int components;
+
+        byte[] resourcesJson;
+
+        @Setup
+        public void setUp() {
+            resourcesJson = SonarFixtures.resources(components, 20);
+        }
+    }
+
+    @Benchmark
+    public Map<String, SonarMeasureMeta> parseMeasureMeta(Catalogue catalogue) throws IOException {
+        return SonarClient.parseMeasureMeta(new ByteArrayInputStream(catalogue.metricsJson));
+    }
+
+    @Benchmark
+    public List<SonarMeasure> parseMeasures(Catalogue catalogue) throws IOException {
+        return SonarClient.parseMeasures(new ByteArrayInputStream(catalogue.resourceJson));
+    }
+
+    @Benchmark
+    public long parseComponents(Components components) throws Exception {
+        final long[] measures = new long[1];
+        SonarClient.parseComponents(new ByteArrayInputStream(components.resourcesJson), new SonarComponentHandler() {
+            public void component(SonarComponent component) {
+                measures[0] += component.getMeasures().size();
+            }
+        });
+        return measures[0];
+    }
+}
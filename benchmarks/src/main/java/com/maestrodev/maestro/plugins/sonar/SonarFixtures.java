@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Generates Sonar responses of a given size, shaped like the payloads recorded from a real server
+ * (see src/test/resources in the plugin).
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+final class SonarFixtures {
+
+    private static final String[] VALUE_TYPES = {"INT", "FLOAT", "PERCENT", "MILLISEC", "DATA", "LEVEL", "WORK_DUR"};
+    private static final String[] DOMAINS = {"Size", "Tests", "Complexity", "Duplications", "Issues", "Design"};
+
+    private SonarFixtures() {
+    }
+
+    /**
+     * @return The metric key used at the given index, the real metric names come first
+     */
+    static String metricKey(int i) {
+        int real = SonarWorker.TESTS_METRIC_NAMES.length + SonarWorker.RULES_METRIC_NAMES.length;
+        if (i < SonarWorker.TESTS_METRIC_NAMES.length) {
+            return SonarWorker.TESTS_METRIC_NAMES[i];
+        } else if (i < real) {
+            return SonarWorker.RULES_METRIC_NAMES[i - SonarWorker.TESTS_METRIC_NAMES.length];
+        }
+        return "custom_metric_" + i;
+    }
+
+    /**
+     * @param metrics The number of metrics in the catalogue
+     * @return An <code>/api/metrics</code> response
+     */
+    static byte[] metrics(int metrics) {
+        StringBuilder json = new StringBuilder(metrics * 256).append("[\n");
+        for (int i = 0; i < metrics; i++) {
+            if (i > 0) {
+                json.append(",\n");
+            }
+            json.append("  {\n")
+                .append("    \"key\": \"").append(metricKey(i)).append("\",\n")
+                .append("    \"name\": \"Metric number ").append(i).append("\",\n")
+                .append("    \"description\": \"A description of metric ").append(i).append(" as long as the real ones are\",\n")
+                .append("    \"domain\": \"").append(DOMAINS[i % DOMAINS.length]).append("\",\n")
+                .append("    \"qualitative\": ").append(i % 2 == 0).append(",\n")
+                .append("    \"user_managed\": false,\n")
+                .append("    \"direction\": ").append(i % 3 - 1).append(",\n")
+                .append("    \"val_type\": \"").append(VALUE_TYPES[i % VALUE_TYPES.length]).append("\",\n")
+                .append("    \"hidden\": false\n")
+                .append("  }");
+        }
+        return bytes(json.append("\n]\n"));
+    }
+
+    /**
+     * @param components The number of components in the response, all carrying the same measures
+     * @param measures   The number of measures per component
+     * @return An <code>/api/resources</code> response
+     */
+    static byte[] resources(int components, int measures) {
+        StringBuilder json = new StringBuilder(components * (measures * 80 + 512)).append("[\n");
+        for (int c = 0; c < components; c++) {
+            if (c > 0) {
+                json.append(",\n");
+            }
+            json.append("  {\n")
+                .append("    \"id\": ").append(269309 + c).append(",\n")
+                .append("    \"key\": \"org.apache.commons:commons-lang3").append(c == 0 ? "" : ":src/File" + c + ".java").append("\",\n")
+                .append("    \"name\": \"Apache Commons Lang\",\n")
+                .append("    \"scope\": \"").append(c == 0 ? "PRJ" : "FIL").append("\",\n")
+                .append("    \"qualifier\": \"").append(c == 0 ? "TRK" : "CLA").append("\",\n")
+                .append("    \"date\": \"2014-08-24T19:05:49+0200\",\n")
+                .append("    \"creationDate\": null,\n")
+                .append("    \"lname\": \"Apache Commons Lang\",\n")
+                .append("    \"version\": \"3.4-SNAPSHOT\",\n")
+                .append("    \"description\": \"Apache Commons Lang, a package of Java utility classes\",\n")
+                .append("    \"msr\": [\n");
+            for (int i = 0; i < measures; i++) {
+                if (i > 0) {
+                    json.append(",\n");
+                }
+                json.append("      {\n")
+                    .append("        \"key\": \"").append(metricKey(i)).append("\",\n")
+                    .append("        \"val\": ").append(i * 1.5).append(",\n")
+                    .append("        \"frmt_val\": \"").append(i * 1.5).append("%\"\n")
+                    .append("      }");
+            }
+            json.append("\n    ]\n  }");
+        }
+        return bytes(json.append("\n]\n"));
+    }
+
+    private static byte[] bytes(StringBuilder json) {
+        try {
+            return json.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of turning fetched measures into the Maestro context: {@link SonarWorker#processMeasures} over a whole
+ * catalogue, and the construction of the context of one project, with the default and the compact output.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SonarWorkerProcessBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int metrics;
+
+    private Map<String, SonarMeasureMeta> metas;
+    private List<SonarMeasure> measures;
+    private List<String> keys;
+    private Map<String, List<SonarMeasure>> groupedMeasures;
+
+    @Setup
+    public void setUp() throws IOException {
+        metas = SonarClient.parseMeasureMeta(new ByteArrayInputStream(SonarFixtures.metrics(metrics)));
+        measures = SonarClient.parseMeasures(new ByteArrayInputStream(SonarFixtures.resources(1, metrics)));
+
+        keys = new ArrayList<String>();
+        for (SonarMeasure measure : measures) {
+            keys.add(measure.getKey());
+        }
+
+        // split like SonarClient.getMeasures(projectKey, metricGroups) does
+        Map<String, SonarMeasure> measuresByKey = new HashMap<String, SonarMeasure>();
+        for (SonarMeasure measure : measures) {
+            measuresByKey.put(measure.getKey(), measure);
+        }
+        groupedMeasures = new LinkedHashMap<String, List<SonarMeasure>>();
+        for (Map.Entry<String, String[]> group : SonarWorker.METRIC_GROUPS.entrySet()) {
+            List<SonarMeasure> groupMeasures = new ArrayList<SonarMeasure>();
+            for (String key : group.getValue()) {
+                if (measuresByKey.containsKey(key)) {
+                    groupMeasures.add(measuresByKey.get(key));
+                }
+            }
+            groupedMeasures.put(group.getKey(), groupMeasures);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> processMeasures() {
+        return SonarWorker.processMeasures(metas, measures);
+    }
+
+    @Benchmark
+    public Map<String, Object> processMeasuresCompact() {
+        return SonarWorker.processMeasuresCompact(keys, measures);
+    }
+
+    @Benchmark
+    public Map<String, Object> projectContext() {
+        Map<String, Object> context = new HashMap<String, Object>();
+        SonarWorker.putProjectMetrics(context, "http://localhost:9000", "org.apache.commons:commons-lang3", metas, groupedMeasures, false);
+        return context;
+    }
+
+    @Benchmark
+    public Map<String, Object> projectContextCompact() {
+        Map<String, Object> context = new HashMap<String, Object>();
+        SonarWorker.putProjectMetrics(context, "http://localhost:9000", "org.apache.commons:commons-lang3", metas, groupedMeasures, true);
+        return context;
+    }
+}
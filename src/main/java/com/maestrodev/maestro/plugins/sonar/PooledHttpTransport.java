@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link SonarTransport} sending requests through the keep-alive {@link SonarConnectionPool} of the server. Closing
+ * the returned stream reads the rest of the response and hands the connection back to the pool. Responses are
+ * compressed unless disabled, see {@link SonarCompression}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class PooledHttpTransport implements SonarTransport {
+
+    private final SonarConnectionPool pool;
+    private final String authorization;
+
+    /**
+     * Send every request through the pool of the server of its URL, for clients talking to several servers.
+     *
+     * @param authorization The value of the Authorization header sent with every request, or null
+     */
+    public PooledHttpTransport(String authorization) {
+        this(null, authorization);
+    }
+
+    /**
+     * @param pool          The pool of the server
+     * @param authorization The value of the Authorization header sent with every request, or null
+     */
+    public PooledHttpTransport(SonarConnectionPool pool, String authorization) {
+        this.pool = pool;
+        this.authorization = authorization;
+    }
+
+    public InputStream get(String url) throws IOException {
+        HttpGet get = new HttpGet(url);
+        get.setHeader("Accept", "application/json");
+        if (SonarCompression.isEnabled()) {
+            get.setHeader("Accept-Encoding", SonarCompression.ACCEPT_ENCODING);
+        }
+        if (authorization != null) {
+            get.setHeader("Authorization", authorization);
+        }
+
+        SonarConnectionPool server = pool != null ? pool : SonarConnectionPool.forServer(url);
+        CloseableHttpResponse response = server.getHttpClient().execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status < 200 || status >= 300 || entity == null) {
+            try {
+                EntityUtils.consume(entity);
+            } finally {
+                response.close();
+            }
+            throw new SonarHttpException(status, "Sonar answered " + response.getStatusLine() + " for " + url);
+        }
+        Header encoding = entity.getContentEncoding();
+        try {
+            return SonarCompression.decode(entity.getContent(), encoding != null ? encoding.getValue() : null);
+        } catch (IOException e) {
+            // the body could not be read, e.g. a bad gzip header: drop the connection rather than leak its lease
+            response.close();
+            throw e;
+        } catch (RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The pool all the requests go through, null if it depends on the server of each request
+     */
+    public SonarConnectionPool getPool() {
+        return pool;
+    }
+}
@@ -6,14 +6,25 @@ package com.maestrodev.maestro.plugins.sonar;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 
-import us.monoid.json.JSONArray;
-import us.monoid.json.JSONObject;
-import us.monoid.web.JSONResource;
-import us.monoid.web.Resty;
-
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,16 +35,68 @@ import java.util.logging.Logger;
  */
 public class SonarClient {
     private static final Logger logger = Logger.getLogger(SonarClient.class.getName());
+    /**
+     * Default latency percentile of the fastest endpoint after which a request is hedged on the next one
+     */
+    static final double DEFAULT_HEDGE_PERCENTILE = 95;
+
+    /**
+     * The requests needed on an endpoint before its latency percentiles are trusted for hedging
+     */
+    static final int HEDGE_MIN_SAMPLES = 16;
+
+    /**
+     * Marks a hedged request the caller stopped waiting for
+     */
+    private static final Object ABANDONED = new Object();
+
     private static String JSON_MEASUREMENTS = "msr";
     private static String JSON_MEASUREMENT_KEY = "key";
     private static String JSON_MEASUREMENT_VALUE = "val";
     private static String JSON_MEASUREMENT_FORMAT_VALUE = "frmt_val";
 
     private static String JSON_MEASUREMENT_META_KEY = "key";
+    private static String JSON_RESOURCE_KEY = "key";
+    private static String JSON_RESOURCE_NAME = "name";
+    private static String JSON_RESOURCE_QUALIFIER = "qualifier";
+    private static String JSON_RESOURCE_DATE = "date";
+    private static String JSON_RESOURCE_VERSION = "version";
+
+    private static String JSON_SERVER_VERSION = "version";
 
-    private String baseUrl;
-    private String username;
-    Resty resty;
+    private static String JSON_TIMEMACHINE_COLUMNS = "cols";
+    private static String JSON_TIMEMACHINE_METRIC = "metric";
+    private static String JSON_TIMEMACHINE_CELLS = "cells";
+    private static String JSON_TIMEMACHINE_DATE = "d";
+    private static String JSON_TIMEMACHINE_VALUES = "v";
+
+    /**
+     * The first server version offering the web services of {@link SonarMeasuresClient}
+     */
+    static final String MEASURES_API_VERSION = "6.3";
+
+    /**
+     * How long a failed detection of the version of a server is remembered, in milliseconds, the tasks using the
+     * legacy web services meanwhile
+     */
+    static final long VERSION_RETRY_MILLIS = 60000;
+
+    // by base URL, the versions of the servers detected so far
+    private static final ConcurrentMap<String, String> SERVER_VERSIONS = new ConcurrentHashMap<String, String>();
+
+    // by base URL, when the detection of the version of a server last failed, in System.nanoTime() terms
+    private static final ConcurrentMap<String, Long> VERSION_FAILURES = new ConcurrentHashMap<String, Long>();
+
+    String baseUrl;
+    String username;
+    String cacheKey;
+    SonarTransport transport;
+    List<SonarEndpoint> endpoints;
+    boolean hedge = Boolean.getBoolean("sonar.http.hedge");
+    double hedgePercentile = Double.parseDouble(System.getProperty("sonar.http.hedgePercentile", String.valueOf(DEFAULT_HEDGE_PERCENTILE)));
+    SonarMetaCache metaCache = SonarMetaCache.getInstance();
+    SonarTimings timings = new SonarTimings();
+    SonarSingleFlight singleFlight = SonarSingleFlight.getInstance();
 
     /**
      * Create a new SonarClient to use for connecting to Sonar
@@ -53,67 +116,297 @@ public class SonarClient {
      * @param password The Sonar password
      */
     public SonarClient(String baseUrl, String username, String password) {
+        this(Collections.singletonList(baseUrl), username, password);
+    }
+
+    /**
+     * Create a new SonarClient to use for connecting to a Sonar server reachable at several equivalent base URLs, e.g.
+     * read replicas or regional mirrors. Each request goes to the fastest healthy endpoint and fails over to the next
+     * ones. With the <code>sonar.http.hedge</code> system property, a request still pending after a latency
+     * percentile of its endpoint (<code>sonar.http.hedgePercentile</code>, default 95) is also sent to the next
+     * endpoint, the first answer being used.
+     *
+     * @param baseUrls The base URLs, the first one being used for links and to identify the server in the caches
+     * @param username The Sonar username
+     * @param password The Sonar password
+     */
+    public SonarClient(List<String> baseUrls, String username, String password) {
+        String baseUrl = baseUrls.get(0);
         this.baseUrl = baseUrl;
         this.username = username;
-        resty = new Resty();
-
+        this.cacheKey = SonarMetaCache.key(baseUrl, username, password);
         String proxyHost = System.getProperty("http.proxyHost");
         String proxyPort = System.getProperty("http.proxyPort");
         if (proxyHost != null && proxyPort != null) {
             logger.info("Using proxy: " + proxyHost + ":" + proxyPort);
-            resty.setProxy(proxyHost, Integer.parseInt(proxyPort));
         }
 
+        String authorization = null;
         if (StringUtils.isNotEmpty(username)) {
             try {
                 String encodedString = new String(Base64.encodeBase64((username + ":" + password).getBytes("UTF-8"), false), "UTF-8");
-                resty.withHeader("Authorization", "Basic " + encodedString);
+                authorization = "Basic " + encodedString;
             } catch (UnsupportedEncodingException e) {
                 throw new RuntimeException("Problem setting the authorization header for the Sonar client");
             }
         }
+        endpoints = new ArrayList<SonarEndpoint>(baseUrls.size());
+        for (String url : baseUrls) {
+            endpoints.add(SonarEndpoint.forUrl(StringUtils.removeEnd(url, "/")));
+        }
+        // the pooled transport is the default, sonar.http.pooled=false falls back to plain JDK connections
+        if (Boolean.parseBoolean(System.getProperty("sonar.http.pooled", "true"))) {
+            transport = baseUrls.size() == 1
+                    ? new PooledHttpTransport(SonarConnectionPool.forServer(baseUrl), authorization)
+                    : new PooledHttpTransport(authorization);
+        } else {
+            transport = new UrlConnectionTransport(authorization);
+        }
+    }
+
+    /**
+     * Create a client sharing the server, transport, caches and timings of another one, to talk to the same server
+     * through other web services.
+     *
+     * @param client The client
+     */
+    SonarClient(SonarClient client) {
+        this.baseUrl = client.baseUrl;
+        this.username = client.username;
+        this.cacheKey = client.cacheKey;
+        this.transport = client.transport;
+        this.endpoints = client.endpoints;
+        this.hedge = client.hedge;
+        this.hedgePercentile = client.hedgePercentile;
+        this.metaCache = client.metaCache;
+        this.timings = client.timings;
+        this.singleFlight = client.singleFlight;
+    }
+
+    /**
+     * Pick the web services to talk to the server with: the legacy ones of this client (<code>/api/resources</code>,
+     * <code>/api/metrics</code>, <code>/api/timemachine</code>), or the measures ones of a {@link SonarMeasuresClient}
+     * for servers from {@link #MEASURES_API_VERSION} on. The version of each server is only detected once; a failed
+     * detection is not tried again for {@link #VERSION_RETRY_MILLIS}.
+     *
+     * @param api "legacy", "measures", or "auto" or null to choose from the version of the server
+     * @return This client, or a measures client sharing its server, transport, caches and timings
+     * @throws IllegalArgumentException If the api is unknown
+     */
+    public SonarClient withApi(String api) {
+        if (StringUtils.isBlank(api) || "auto".equalsIgnoreCase(api.trim())) {
+            String version = SERVER_VERSIONS.get(baseUrl);
+            if (version == null) {
+                Long failed = VERSION_FAILURES.get(baseUrl);
+                if (failed != null && System.nanoTime() - failed < TimeUnit.MILLISECONDS.toNanos(VERSION_RETRY_MILLIS)) {
+                    return this;
+                }
+                try {
+                    version = getServerVersion();
+                    SERVER_VERSIONS.put(baseUrl, version);
+                    VERSION_FAILURES.remove(baseUrl);
+                    logger.log(Level.INFO, "sonar server {0} is version {1}", new Object[]{baseUrl, version});
+                } catch (Exception e) {
+                    // tried again once the failure is old enough, not by every task
+                    VERSION_FAILURES.put(baseUrl, System.nanoTime());
+                    logger.log(Level.WARNING, "Could not detect the version of sonar server " + baseUrl
+                            + ", using the legacy web services for " + VERSION_RETRY_MILLIS / 1000 + "s: " + e.getMessage());
+                    return this;
+                }
+            }
+            return isVersionAtLeast(version, MEASURES_API_VERSION) ? new SonarMeasuresClient(this) : this;
+        } else if ("measures".equalsIgnoreCase(api.trim())) {
+            return new SonarMeasuresClient(this);
+        } else if ("legacy".equalsIgnoreCase(api.trim())) {
+            return this;
+        }
+        throw new IllegalArgumentException("Unknown Sonar API '" + api + "', use auto, legacy or measures");
+    }
+
+    /**
+     * Compare dotted versions number by number, ignoring what follows the digits of each number (e.g. -SNAPSHOT).
+     *
+     * @param version The version, e.g. 7.9.1.27448
+     * @param minimum The minimum version, e.g. 6.3
+     * @return true if the version is the minimum one or a later one
+     */
+    static boolean isVersionAtLeast(String version, String minimum) {
+        String[] numbers = version.trim().split("\\.");
+        String[] minimumNumbers = minimum.split("\\.");
+        for (int i = 0; i < minimumNumbers.length; i++) {
+            int number = i < numbers.length ? leadingNumber(numbers[i]) : 0;
+            int minimumNumber = leadingNumber(minimumNumbers[i]);
+            if (number != minimumNumber) {
+                return number > minimumNumber;
+            }
+        }
+        return true;
+    }
+
+    private static int leadingNumber(String s) {
+        int end = 0;
+        while (end < s.length() && end < 9 && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? 0 : Integer.parseInt(s.substring(0, end));
     }
 
     /**
-     * Get the measurement metadata for the specified project key
+     * @return The key identifying the server and credentials of this client in the shared caches
+     */
+    String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return The time spent in each request and parse made by this client, with the bytes read
+     */
+    public SonarTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Get the measurement metadata for the specified project key. The metadata catalogue is the same for every project
+     * on a server, so it is served from the shared {@link SonarMetaCache} whenever possible.
      *
      * @param projectKey The Sonar project key or id
      * @return A map of metric names to metadata for the metric
      * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
      */
     public Map<String, SonarMeasureMeta> getMeasureMeta(String projectKey) throws Exception {
-        String messageSuffix = String.format(" for sonar project '%s' with username '%s' on server '%s'", projectKey, username, baseUrl);
+        return getMetricCatalogue(projectKey).getMetas();
+    }
+
+    /**
+     * Get the metadata catalogue of the server, indexed by domain, served from the shared {@link SonarMetaCache}
+     * whenever possible.
+     *
+     * @param projectKey The Sonar project key or id, or null to not request it for a project
+     * @return The catalogue
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public SonarMetricCatalogue getMetricCatalogue(String projectKey) throws Exception {
+        SonarMetricCatalogue cached = metaCache.getCatalogue(cacheKey);
+        if (cached != null) {
+            logger.log(Level.FINE, "using cached metrics meta for server {0}", baseUrl);
+            timings.cacheHit();
+            return cached;
+        }
 
         try {
-            String url = baseUrl + "/api/metrics?resource=" + projectKey;
-            logger.log(Level.INFO, "requesting metrics meta from url " + url + messageSuffix);
+            final String url = projectKey != null ? baseUrl + "/api/metrics?resource=" + projectKey : baseUrl + "/api/metrics";
+            logRequest(logger, Level.INFO, "metrics meta", url, projectKey);
 
-            JSONResource resource = resty.json(url);
-            JSONArray metas = resource.array();
+            // concurrent misses share a single load, whatever the project as the catalogue is the same for all
+            return singleFlight.execute(cacheKey + "|/api/metrics", new Callable<SonarMetricCatalogue>() {
+                public SonarMetricCatalogue call() throws Exception {
+                    InputStream in = open("meta", url);
+                    long start = System.nanoTime();
+                    Map<String, SonarMeasureMeta> measureMetas;
+                    try {
+                        measureMetas = parseMeasureMeta(in);
+                    } finally {
+                        in.close();
+                        timings.stop("meta.parse", start);
+                    }
 
-            // create measure objects for all the returned json data
-            HashMap<String, SonarMeasureMeta> measureMetas = new HashMap<String, SonarMeasureMeta>();
-            for (int i = 0; i < metas.length(); i++) {
-                JSONObject tmp = metas.getJSONObject(i);
-                logger.log(Level.FINE, "metadata is " + tmp + messageSuffix);
+                    // the indexes are built once per load, then cached with the catalogue
+                    return metaCache.putCatalogue(cacheKey, new SonarMetricCatalogue(measureMetas));
+                }
+            });
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "There was an error retrieving measurement metas from sonar", e);
+            throw new Exception("There was an error retrieving measurement metas from sonar", e);
+        }
+    }
+
+    /**
+     * Get the latest snapshot of a project. This is a cheap call, no measures are requested, used to find out whether
+     * the project was analyzed again since its metrics were last fetched.
+     *
+     * @param projectKey The Sonar project key or id
+     * @return The date and version of the latest analysis of the project
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public SonarSnapshot getSnapshot(final String projectKey) throws Exception {
+        try {
+            final String url = baseUrl + "/api/resources?resource=" + projectKey;
+            logRequest(logger, Level.FINE, "snapshot", url, projectKey);
 
-                // fetch all the key/value pairs out of the response and shove them into our object
-                SonarMeasureMeta meta = new SonarMeasureMeta();
-                Iterator<String> j = tmp.keys();
-                while (j.hasNext()) {
-                    String key = j.next();
-                    Object value = tmp.get(key);
-                    meta.put(key, value);
+            return singleFlight.execute(cacheKey + "|" + url, new Callable<SonarSnapshot>() {
+                public SonarSnapshot call() throws Exception {
+                    InputStream in = open("snapshot", url);
+                    long start = System.nanoTime();
+                    try {
+                        return parseSnapshot(projectKey, in);
+                    } finally {
+                        in.close();
+                        timings.stop("snapshot.parse", start);
+                    }
                 }
+            });
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving the snapshot from sonar", e);
+        }
+    }
 
-                // add it by key into our map of metas
-                measureMetas.put(tmp.getString(JSON_MEASUREMENT_META_KEY), meta);
+    /**
+     * Get the version of the server. This is the cheapest call there is, also used to open connections ahead of time.
+     * The plain text <code>/api/server/version</code> is asked first, then the JSON <code>/api/server</code> of the
+     * servers that do not have it.
+     *
+     * @return The version of the server, e.g. 3.7.2
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public String getServerVersion() throws Exception {
+        try {
+            String url = baseUrl + "/api/server/version";
+            logRequest(logger, Level.FINE, "server version", url, null);
+
+            InputStream in;
+            boolean json = false;
+            try {
+                in = open("server", url);
+            } catch (SonarHttpException e) {
+                if (e.getStatus() != 404) {
+                    throw e;
+                }
+                json = true;
+                in = open("server", baseUrl + "/api/server");
             }
+            long start = System.nanoTime();
+            try {
+                return json ? parseServerVersion(in) : parseServerVersionText(in);
+            } finally {
+                in.close();
+                timings.stop("server.parse", start);
+            }
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving the server version from sonar", e);
+        }
+    }
 
-            return measureMetas;
+    /**
+     * Get the keys of all the projects on the server
+     *
+     * @return The project keys
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public List<String> getProjectKeys() throws Exception {
+        try {
+            String url = baseUrl + "/api/resources?qualifiers=TRK";
+            logRequest(logger, Level.INFO, "projects", url, null);
+
+            InputStream in = open("projects", url);
+            long start = System.nanoTime();
+            try {
+                return parseProjectKeys(in);
+            } finally {
+                in.close();
+                timings.stop("projects.parse", start);
+            }
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "There was an error retrieving measurement metas from sonar", e);
-            throw new Exception("There was an error retrieving measurement metas from sonar", e);
+            throw new Exception("There was an error retrieving projects from sonar", e);
         }
     }
 
@@ -122,42 +415,831 @@ public class SonarClient {
      *
      * @param projectKey  the name of the project or the project ID
      * @param measureKeys the key names for the measurements to request for the project
-     * @return
+     * @return The measures, shared with the concurrent identical requests so they must not be modified
      * @throws Exception
      * @throws IOException
      */
     public List<SonarMeasure> getMeasures(String projectKey, String... measureKeys) throws Exception {
-        String messageSuffix = String.format(" for sonar project '%s' with username '%s' on server '%s'", projectKey, username, baseUrl);
+        return getComponent(projectKey, measureKeys).getMeasures();
+    }
 
-        String s = "";
-        for (int i = 0; i < measureKeys.length; i++) {
-            s += measureKeys[i];
-            if (i + 1 < measureKeys.length) {
-                s += ",";
-            }
+    /**
+     * Get measures for the specified project and keys, with the project they were measured on. The legacy web
+     * services tell the date and version of the latest analysis along with the measures, see
+     * {@link #isSnapshotInMeasures()}.
+     *
+     * @param projectKey  the name of the project or the project ID
+     * @param measureKeys the key names for the measurements to request for the project
+     * @return The project, shared with the concurrent identical requests so its measures must not be modified
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public SonarComponent getComponent(String projectKey, String... measureKeys) throws Exception {
+        try {
+            final String url = baseUrl + "/api/resources?resource=" + projectKey + "&metrics=" + StringUtils.join(measureKeys, ',');
+            logRequest(logger, Level.INFO, "metrics", url, projectKey);
+
+            // the same work item often runs in several compositions at once, they share one request
+            return singleFlight.execute(cacheKey + "|" + url, new Callable<SonarComponent>() {
+                public SonarComponent call() throws Exception {
+                    InputStream in = open("measures", url);
+                    long start = System.nanoTime();
+                    try {
+                        return unmodifiable(parseMeasuredComponent(in));
+                    } finally {
+                        in.close();
+                        timings.stop("measures.parse", start);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving measurements from sonar", e);
         }
+    }
 
+    /**
+     * Stream the components below a project (modules, packages, files...) with some of their measures. The
+     * components are handed over one at a time while the response is read, so memory use does not depend on the size
+     * of the project.
+     *
+     * @param projectKey  the name of the project or the project ID
+     * @param depth       how deep to walk below the project, -1 for all levels
+     * @param qualifiers  the qualifiers of the components to return (e.g. "CLA,FIL" for files), or null for all
+     * @param handler     receives the components
+     * @param measureKeys the key names of the metrics to request for each component
+     * @return The number of components read
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public long getComponents(String projectKey, int depth, String qualifiers, SonarComponentHandler handler,
+                              String... measureKeys) throws Exception {
         try {
-            String url = baseUrl + "/api/resources?resource=" + projectKey + "&metrics=" + s;
-            logger.log(Level.INFO, "requesting metrics from url " + url + messageSuffix);
+            StringBuilder url = new StringBuilder(baseUrl).append("/api/resources?resource=").append(projectKey)
+                    .append("&depth=").append(depth)
+                    .append("&metrics=").append(StringUtils.join(measureKeys, ','));
+            if (StringUtils.isNotEmpty(qualifiers)) {
+                url.append("&qualifiers=").append(qualifiers);
+            }
+            logRequest(logger, Level.INFO, "components", url, projectKey);
 
-            JSONResource resource = resty.json(url);
-            JSONArray metrics = resource.array();
-            JSONObject o = metrics.getJSONObject(0);
-            JSONArray msr = o.getJSONArray(JSON_MEASUREMENTS);
+            InputStream in = open("components", url.toString());
+            long start = System.nanoTime();
+            try {
+                return parseComponents(in, handler);
+            } finally {
+                in.close();
+                timings.stop("components.parse", start);
+            }
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving components from sonar", e);
+        }
+    }
 
-            // create measure objects for all the returned json data
-            ArrayList<SonarMeasure> measures = new ArrayList<SonarMeasure>();
-            for (int i = 0; i < msr.length(); i++) {
-                JSONObject tmp = msr.getJSONObject(i);
-                SonarMeasure measure = new SonarMeasure(tmp.getString(JSON_MEASUREMENT_KEY), tmp.get(JSON_MEASUREMENT_VALUE), tmp.getString(JSON_MEASUREMENT_FORMAT_VALUE));
-                measures.add(measure);
+    /**
+     * Get the history of some metrics of a project from the time machine, one point per analysis. The date range is
+     * applied by the server; either bound may be null.
+     *
+     * @param projectKey  the name of the project or the project ID
+     * @param fromDate    the earliest analysis date to include (e.g. 2014-01-01 or 2014-01-01T00:00:00+0000), or null
+     * @param toDate      the latest analysis date to include, or null
+     * @param measureKeys the key names of the metrics to request
+     * @return The history, oldest analysis first
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public SonarTimeSeries getHistory(String projectKey, String fromDate, String toDate, String... measureKeys) throws Exception {
+        try {
+            StringBuilder url = new StringBuilder(baseUrl).append("/api/timemachine?resource=").append(projectKey)
+                    .append("&metrics=").append(StringUtils.join(measureKeys, ','));
+            if (StringUtils.isNotEmpty(fromDate)) {
+                url.append("&fromDateTime=").append(URLEncoder.encode(fromDate, "UTF-8"));
+            }
+            if (StringUtils.isNotEmpty(toDate)) {
+                url.append("&toDateTime=").append(URLEncoder.encode(toDate, "UTF-8"));
             }
+            logRequest(logger, Level.INFO, "metrics history", url, projectKey);
 
-            return measures;
+            InputStream in = open("history", url.toString());
+            long start = System.nanoTime();
+            try {
+                return parseHistory(in);
+            } finally {
+                in.close();
+                timings.stop("history.parse", start);
+            }
         } catch (Exception e) {
-            throw new Exception("There was an error retrieving measurements from sonar", e);
+            throw new Exception("There was an error retrieving metrics history from sonar", e);
+        }
+    }
+
+    /**
+     * @return Whether the project of {@link #getComponent(String, String...)} carries the date and version of its
+     * latest analysis, so they need not be asked with {@link #getSnapshot(String)}
+     */
+    public boolean isSnapshotInMeasures() {
+        return true;
+    }
+
+    static SonarComponent unmodifiable(SonarComponent component) {
+        return new SonarComponent(component.getKey(), component.getName(), component.getQualifier(),
+                Collections.unmodifiableList(component.getMeasures()), component.getDate(), component.getVersion());
+    }
+
+    /**
+     * Get measures for several groups of metrics of the same project in a single request. The union of all the
+     * groups' metric keys is requested at once and the response is split back into one list per group, keeping the
+     * order the keys were given in. A metric that belongs to several groups is returned in each of them.
+     *
+     * @param projectKey   the name of the project or the project ID
+     * @param metricGroups the metric key names to request, by group name (e.g. "tests", "rules")
+     * @return The measures returned by Sonar for each group, by group name, in the iteration order of metricGroups
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public Map<String, List<SonarMeasure>> getMeasures(String projectKey, Map<String, String[]> metricGroups) throws Exception {
+        return groupMeasures(getMeasures(projectKey, metricKeys(metricGroups)), metricGroups);
+    }
+
+    /**
+     * Get the same measures for several projects, in as few requests as the web services allow: one per project for
+     * the legacy ones, up to {@link #getMaxProjectsPerRequest()} per request for the others.
+     *
+     * @param projectKeys the names of the projects or the project IDs
+     * @param measureKeys the key names for the measurements to request for each project
+     * @return The measures of each project, by project key in the order of projectKeys, shared with the concurrent
+     * identical requests so they must not be modified
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public Map<String, List<SonarMeasure>> getMeasures(List<String> projectKeys, String... measureKeys) throws Exception {
+        Map<String, List<SonarMeasure>> measures = new LinkedHashMap<String, List<SonarMeasure>>();
+        for (String projectKey : projectKeys) {
+            measures.put(projectKey, getMeasures(projectKey, measureKeys));
+        }
+        return measures;
+    }
+
+    /**
+     * Get measures for several groups of metrics of several projects, as in {@link #getMeasures(String, Map)} for
+     * each project, with the requests of {@link #getMeasures(List, String...)}.
+     *
+     * @param projectKeys  the names of the projects or the project IDs
+     * @param metricGroups the metric key names to request, by group name (e.g. "tests", "rules")
+     * @return The measures of each group by group name, by project key in the order of projectKeys
+     * @throws Exception Whenever things hit the fan (failure to connect to Sonar, auth issues, processing badness, etc.)
+     */
+    public Map<String, Map<String, List<SonarMeasure>>> getMeasures(List<String> projectKeys, Map<String, String[]> metricGroups) throws Exception {
+        Map<String, Map<String, List<SonarMeasure>>> grouped = new LinkedHashMap<String, Map<String, List<SonarMeasure>>>();
+        for (Map.Entry<String, List<SonarMeasure>> project : getMeasures(projectKeys, metricKeys(metricGroups)).entrySet()) {
+            grouped.put(project.getKey(), groupMeasures(project.getValue(), metricGroups));
         }
+        return grouped;
+    }
+
+    /**
+     * @return The most projects worth asking for in one call to {@link #getMeasures(List, String...)}, 1 as the
+     * legacy web services take one project per request
+     */
+    public int getMaxProjectsPerRequest() {
+        return 1;
+    }
+
+    /**
+     * @param metricGroups The metric key names, by group name
+     * @return The union of all the groups' metric keys, in the order they were given
+     */
+    static String[] metricKeys(Map<String, String[]> metricGroups) {
+        Set<String> allKeys = new LinkedHashSet<String>();
+        for (String[] keys : metricGroups.values()) {
+            Collections.addAll(allKeys, keys);
+        }
+        return allKeys.toArray(new String[allKeys.size()]);
+    }
+
+    /**
+     * Split measures into groups, keeping the order the keys of each group were given in. A metric that belongs to
+     * several groups is put in each of them.
+     *
+     * @param measures     The measures of all the groups
+     * @param metricGroups The metric key names, by group name
+     * @return The measures of each group, by group name, in the iteration order of metricGroups
+     */
+    static Map<String, List<SonarMeasure>> groupMeasures(List<SonarMeasure> measures, Map<String, String[]> metricGroups) {
+        Map<String, SonarMeasure> measuresByKey = new HashMap<String, SonarMeasure>(measures.size() * 2);
+        for (SonarMeasure measure : measures) {
+            measuresByKey.put(measure.getKey(), measure);
+        }
+
+        Map<String, List<SonarMeasure>> groupedMeasures = new LinkedHashMap<String, List<SonarMeasure>>();
+        for (Map.Entry<String, String[]> group : metricGroups.entrySet()) {
+            List<SonarMeasure> groupMeasures = new ArrayList<SonarMeasure>(group.getValue().length);
+            for (String key : group.getValue()) {
+                SonarMeasure measure = measuresByKey.get(key);
+                if (measure != null) {
+                    groupMeasures.add(measure);
+                }
+            }
+            groupedMeasures.put(group.getKey(), groupMeasures);
+        }
+        return groupedMeasures;
+    }
+
+    /**
+     * Log a request, only formatting the message when it is logged.
+     *
+     * @param log        The logger of the client class
+     * @param level      The level, FINE for the cheap probes
+     * @param what       What is requested, e.g. metrics
+     * @param url        The URL of the request
+     * @param projectKey The project the request is for, null if it is for the server
+     */
+    void logRequest(Logger log, Level level, String what, CharSequence url, String projectKey) {
+        if (log.isLoggable(level)) {
+            log.log(level, "requesting {0} from url {1}{2}", new Object[]{what, url, projectKey != null
+                    ? new MessageSuffix(projectKey, username, baseUrl) : MessageSuffix.forServer(username, baseUrl)});
+        }
+    }
+
+    /**
+     * Send a request to the preferred endpoint, failing over to the others when it is overloaded or unreachable, and
+     * count the bytes read from the response.
+     *
+     * @param phase The phase the request is timed under, with a ".request" suffix
+     * @param url   The URL to get, on the first endpoint
+     * @return The response body
+     * @throws IOException If the request failed on every endpoint
+     */
+    InputStream open(String phase, String url) throws IOException {
+        if (endpoints.size() == 1) {
+            return timings.count(send(endpoints.get(0), phase, url));
+        }
+
+        String path = url.substring(baseUrl.length());
+        List<SonarEndpoint> preferred = SonarEndpoint.byPreference(endpoints);
+        IOException failure = null;
+        for (int i = 0; i < preferred.size(); i++) {
+            SonarEndpoint endpoint = preferred.get(i);
+            try {
+                if (hedge && i + 1 < preferred.size()) {
+                    return timings.count(sendHedged(endpoint, preferred.get(i + 1), phase, path));
+                }
+                return timings.count(send(endpoint, phase, endpoint.getBaseUrl() + path));
+            } catch (SonarHttpException e) {
+                if (!e.isServerOverloaded()) {
+                    // the other endpoints would reject it all the same
+                    throw e;
+                }
+                failure = e;
+            } catch (SocketTimeoutException e) {
+                failure = e;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+            if (i + 1 < preferred.size()) {
+                logger.log(Level.WARNING, "failing over from " + endpoint + " to " + preferred.get(i + 1) + ": " + failure.getMessage());
+                SonarMetrics.getInstance().failover();
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Send a request to one endpoint once its limiter lets it through, timing it until the response is in. The
+     * request holds its place in the limiter until the response is closed.
+     *
+     * @param endpoint The endpoint
+     * @param phase    The phase the request is timed under, with a ".request" suffix
+     * @param url      The URL to get, on the endpoint
+     * @return The response body
+     * @throws IOException If the request failed
+     */
+    private InputStream send(SonarEndpoint endpoint, String phase, String url) throws IOException {
+        final SonarServerLimiter limiter = endpoint.getLimiter();
+        long start = System.nanoTime();
+        limiter.acquire();
+        timings.stop("throttle", start);
+
+        long sent = System.nanoTime();
+        final InputStream in;
+        try {
+            in = transport.get(url);
+        } catch (IOException e) {
+            limiter.sample(phase, System.nanoTime() - sent, e);
+            limiter.release();
+            endpoint.failure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            limiter.release();
+            throw e;
+        }
+        long latency = System.nanoTime() - sent;
+        limiter.sample(phase, latency, null);
+        endpoint.success(latency);
+        timings.record(phase + ".request", latency);
+
+        return new FilterInputStream(in) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        limiter.release();
+                        if (in instanceof SonarCompression.Decoded) {
+                            timings.addWireBytesRead(((SonarCompression.Decoded) in).getWireBytes());
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Send a request to an endpoint and, if it did not answer within its usual latency, to a second one too. The
+     * first successful answer is used, the other one is closed when it comes in.
+     *
+     * @param endpoint The endpoint
+     * @param hedge    The endpoint the request is hedged on
+     * @param phase    The phase the requests are timed under, with a ".request" suffix
+     * @param path     The path of the URL to get, after the base URL
+     * @return The response body
+     * @throws IOException If the request failed on the endpoint, and on the second one if it was hedged
+     */
+    private InputStream sendHedged(SonarEndpoint endpoint, SonarEndpoint hedge, String phase, String path) throws IOException {
+        if (endpoint.getLatencySamples() < HEDGE_MIN_SAMPLES) {
+            return send(endpoint, phase, endpoint.getBaseUrl() + path);
+        }
+        long delay = endpoint.getLatencyPercentileNanos(hedgePercentile);
+
+        // the first answer in, or ABANDONED once the caller gave up
+        AtomicReference<Object> decided = new AtomicReference<Object>();
+        CompletionService<InputStream> attempts = new ExecutorCompletionService<InputStream>(SonarExecutors.hedge());
+        attempts.submit(new Attempt(endpoint, phase, path, decided));
+        int pending = 1;
+        IOException failure = null;
+        try {
+            Future<InputStream> done = attempts.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "hedging request {0} on {1} after {2}ms", new Object[]{path, hedge, delay / 1000000});
+                }
+                SonarMetrics.getInstance().hedge();
+                attempts.submit(new Attempt(hedge, phase, path, decided));
+                pending++;
+            }
+            while (pending > 0) {
+                if (done == null) {
+                    done = attempts.take();
+                }
+                pending--;
+                try {
+                    InputStream in = done.get();
+                    if (in != null) {
+                        return in;
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            // the attempts still running close their answer, the one that came in already is closed here, whether or
+            // not its future is done, so it hands its connection and its place in the limiter back
+            Object answer = decided.getAndSet(ABANDONED);
+            if (answer instanceof InputStream) {
+                try {
+                    ((InputStream) answer).close();
+                } catch (IOException closeFailure) {
+                    logger.log(Level.FINE, "could not close an abandoned response", closeFailure);
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + path);
+        }
+    }
+
+    /**
+     * The project, user and server of a task or a request, appended to its log and error messages. Only formatted
+     * when a message is actually logged or an error is set.
+     */
+    static final class MessageSuffix {
+        private final String projectKey;
+        private final String username;
+        private final String url;
+        private final boolean server;
+
+        MessageSuffix(String projectKey, String username, String url) {
+            this(projectKey, username, url, false);
+        }
+
+        private MessageSuffix(String projectKey, String username, String url, boolean server) {
+            this.projectKey = projectKey;
+            this.username = username;
+            this.url = url;
+            this.server = server;
+        }
+
+        /**
+         * @return The suffix of the requests made to the server rather than for projects
+         */
+        static MessageSuffix forServer(String username, String url) {
+            return new MessageSuffix(null, username, url, true);
+        }
+
+        @Override
+        public String toString() {
+            if (server) {
+                return String.format(" with username '%s' on server '%s'", username, url);
+            }
+            if (projectKey == null) {
+                return String.format(" for sonar projects with username '%s' on server '%s'", username, url);
+            }
+            return String.format(" for sonar project '%s' with username '%s' on server '%s'", projectKey, username, url);
+        }
+    }
+
+    /**
+     * One of the requests of a hedged request. Only the first successful one is handed over, through decided, the
+     * other one, or any once the caller gave up, closes its answer right away.
+     */
+    private class Attempt implements Callable<InputStream> {
+        private final SonarEndpoint endpoint;
+        private final String phase;
+        private final String path;
+        private final AtomicReference<Object> decided;
+
+        Attempt(SonarEndpoint endpoint, String phase, String path, AtomicReference<Object> decided) {
+            this.endpoint = endpoint;
+            this.phase = phase;
+            this.path = path;
+            this.decided = decided;
+        }
+
+        public InputStream call() throws IOException {
+            InputStream in = send(endpoint, phase, endpoint.getBaseUrl() + path);
+            if (!decided.compareAndSet(null, in)) {
+                in.close();
+                return null;
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Parse the metrics catalogue, keeping only the key, name, value type, direction and domain of each metric.
+     *
+     * @param in The <code>/api/metrics</code> response
+     * @return The metadata by metric key
+     * @throws IOException If the response could not be read or parsed
+     */
+    static Map<String, SonarMeasureMeta> parseMeasureMeta(InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        Map<String, SonarMeasureMeta> measureMetas = new HashMap<String, SonarMeasureMeta>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String key = null;
+            String name = null;
+            String valueType = null;
+            int direction = 0;
+            String domain = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == SonarJsonReader.Token.NULL) {
+                    reader.nextNull();
+                } else if (JSON_MEASUREMENT_META_KEY.equals(field)) {
+                    key = reader.nextString();
+                } else if (SonarMeasureMeta.MEASURE_NAME_KEY.equals(field)) {
+                    name = reader.nextString();
+                } else if (SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY.equals(field)) {
+                    valueType = reader.nextString();
+                } else if (SonarMeasureMeta.MEASURE_DIRECTION_KEY.equals(field)) {
+                    direction = reader.nextInt();
+                } else if (SonarMeasureMeta.MEASURE_DOMAIN_KEY.equals(field)) {
+                    domain = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            // add it by key into our map of metas
+            SonarMeasureMeta meta = new SonarMeasureMeta(key, name, valueType, direction, domain);
+            measureMetas.put(meta.getKey(), meta);
+        }
+        reader.endArray();
+
+        return measureMetas;
+    }
+
+    /**
+     * Parse the measures of the first resource of a <code>/api/resources</code> response.
+     *
+     * @param in The <code>/api/resources</code> response
+     * @return The measures, in the order returned by Sonar
+     * @throws IOException If the response could not be read or parsed
+     */
+    static List<SonarMeasure> parseMeasures(InputStream in) throws IOException {
+        return parseMeasuredComponent(in).getMeasures();
+    }
+
+    /**
+     * Parse the first resource of a <code>/api/resources</code> response, with its measures and the date and version
+     * of its latest analysis.
+     *
+     * @param in The <code>/api/resources</code> response
+     * @return The resource
+     * @throws IOException If the response could not be read or parsed
+     */
+    static SonarComponent parseMeasuredComponent(InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+
+        reader.beginArray();
+        if (!reader.hasNext()) {
+            throw new IOException("Sonar returned no resource");
+        }
+        // only the first resource is of interest, we stop reading after it
+        return parseComponent(reader);
+    }
+
+    /**
+     * Parse every resource of a <code>/api/resources</code> response, handing them over one at a time.
+     *
+     * @param in      The <code>/api/resources</code> response
+     * @param handler Receives the resources
+     * @return The number of resources parsed
+     * @throws Exception If the response could not be read or parsed, or the handler failed
+     */
+    static long parseComponents(InputStream in, SonarComponentHandler handler) throws Exception {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        long count = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            handler.component(parseComponent(reader));
+            count++;
+        }
+        reader.endArray();
+
+        return count;
+    }
+
+    private static SonarComponent parseComponent(SonarJsonReader reader) throws IOException {
+        String key = null;
+        String name = null;
+        String qualifier = null;
+        String date = null;
+        String version = null;
+        List<SonarMeasure> measures = new ArrayList<SonarMeasure>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_RESOURCE_KEY.equals(field)) {
+                key = reader.nextString();
+            } else if (JSON_RESOURCE_NAME.equals(field)) {
+                name = reader.nextString();
+            } else if (JSON_RESOURCE_QUALIFIER.equals(field)) {
+                qualifier = reader.nextString();
+            } else if (JSON_RESOURCE_DATE.equals(field)) {
+                date = reader.nextString();
+            } else if (JSON_RESOURCE_VERSION.equals(field)) {
+                version = reader.nextString();
+            } else if (JSON_MEASUREMENTS.equals(field)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    measures.add(parseMeasure(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new SonarComponent(key, name, qualifier, measures, date, version);
+    }
+
+    private static SonarMeasure parseMeasure(SonarJsonReader reader) throws IOException {
+        String key = null;
+        double value = Double.NaN;
+        String formattedValue = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_MEASUREMENT_KEY.equals(name)) {
+                key = reader.nextString();
+            } else if (JSON_MEASUREMENT_VALUE.equals(name)) {
+                value = reader.nextDouble();
+            } else if (JSON_MEASUREMENT_FORMAT_VALUE.equals(name)) {
+                formattedValue = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new SonarMeasure(key, value, formattedValue);
+    }
+
+    /**
+     * Parse the date and version of the first resource of a <code>/api/resources</code> response.
+     *
+     * @param projectKey The project the response is about
+     * @param in         The <code>/api/resources</code> response
+     * @return The snapshot
+     * @throws IOException If the response could not be read or parsed
+     */
+    static SonarSnapshot parseSnapshot(String projectKey, InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        String date = null;
+        String version = null;
+
+        reader.beginArray();
+        if (!reader.hasNext()) {
+            throw new IOException("Sonar returned no resource");
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_RESOURCE_DATE.equals(name)) {
+                date = reader.nextString();
+            } else if (JSON_RESOURCE_VERSION.equals(name)) {
+                version = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        return new SonarSnapshot(projectKey, date, version);
+    }
+
+    /**
+     * Parse a plain text version.
+     *
+     * @param in The <code>/api/server/version</code> response
+     * @return The version of the server
+     * @throws IOException If the response could not be read, or is empty
+     */
+    static String parseServerVersionText(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        StringBuilder version = new StringBuilder();
+        char[] buffer = new char[64];
+        for (int read = reader.read(buffer); read >= 0 && version.length() < 256; read = reader.read(buffer)) {
+            version.append(buffer, 0, read);
+        }
+        if (version.toString().trim().length() == 0) {
+            throw new IOException("Sonar returned no server version");
+        }
+        return version.toString().trim();
+    }
+
+    /**
+     * Parse the version out of a server response.
+     *
+     * @param in The <code>/api/server</code> response
+     * @return The version of the server
+     * @throws IOException If the response could not be read or parsed, or holds no version
+     */
+    static String parseServerVersion(InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        String version = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_SERVER_VERSION.equals(name) && reader.peek() == SonarJsonReader.Token.STRING) {
+                version = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (version == null) {
+            throw new IOException("Sonar returned no server version");
+        }
+        return version;
+    }
+
+    /**
+     * Parse a time machine response straight into columns.
+     *
+     * @param in The <code>/api/timemachine</code> response
+     * @return The history
+     * @throws IOException If the response could not be read or parsed
+     */
+    static SonarTimeSeries parseHistory(InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        SonarTimeSeries.Builder series = new SonarTimeSeries.Builder();
+
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (JSON_TIMEMACHINE_COLUMNS.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (JSON_TIMEMACHINE_METRIC.equals(reader.nextName())) {
+                                series.addMetric(reader.nextString());
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                } else if (JSON_TIMEMACHINE_CELLS.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        parseHistoryCell(reader, series);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        return series.build();
+    }
+
+    private static void parseHistoryCell(SonarJsonReader reader, SonarTimeSeries.Builder series) throws IOException {
+        // the values are buffered as they may come before the date
+        String date = null;
+        double[] cellValues = null;
+        int count = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_TIMEMACHINE_DATE.equals(name)) {
+                date = reader.nextString();
+            } else if (JSON_TIMEMACHINE_VALUES.equals(name)) {
+                cellValues = new double[4];
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (count == cellValues.length) {
+                        cellValues = Arrays.copyOf(cellValues, count * 2);
+                    }
+                    if (reader.peek() == SonarJsonReader.Token.NULL) {
+                        reader.nextNull();
+                        cellValues[count++] = Double.NaN;
+                    } else {
+                        cellValues[count++] = reader.nextDouble();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        series.addPoint(date);
+        for (int i = 0; i < count; i++) {
+            series.setValue(i, cellValues[i]);
+        }
+    }
+
+    /**
+     * Parse the keys of the resources of a <code>/api/resources</code> response.
+     *
+     * @param in The <code>/api/resources</code> response
+     * @return The resource keys
+     * @throws IOException If the response could not be read or parsed
+     */
+    static List<String> parseProjectKeys(InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        List<String> projectKeys = new ArrayList<String>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (JSON_RESOURCE_KEY.equals(reader.nextName())) {
+                    projectKeys.add(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+
+        return projectKeys;
     }
 
     /** Example Data
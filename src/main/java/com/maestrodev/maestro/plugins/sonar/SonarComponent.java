@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.List;
+
+/**
+ * A Sonar resource (project, module, package, file...) with the measures requested for it.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarComponent {
+    private final String key;
+    private final String name;
+    private final String qualifier;
+    private final List<SonarMeasure> measures;
+    private final String date;
+    private final String version;
+
+    public SonarComponent(String key, String name, String qualifier, List<SonarMeasure> measures) {
+        this(key, name, qualifier, measures, null, null);
+    }
+
+    public SonarComponent(String key, String name, String qualifier, List<SonarMeasure> measures, String date, String version) {
+        this.key = key;
+        this.name = name;
+        this.qualifier = qualifier;
+        this.measures = measures;
+        this.date = date;
+        this.version = version;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The Sonar qualifier, e.g. TRK for a project, BRC for a module, CLA or FIL for a file
+     */
+    public String getQualifier() {
+        return qualifier;
+    }
+
+    public List<SonarMeasure> getMeasures() {
+        return measures;
+    }
+
+    /**
+     * @return The date of the latest analysis, e.g. 2014-08-24T19:05:49+0200, null if the web service did not tell
+     */
+    public String getDate() {
+        return date;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarComponent{" +
+            "key='" + key + '\'' +
+            ", qualifier='" + qualifier + '\'' +
+            ", measures=" + measures +
+            '}';
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+/**
+ * Receives the components of a Sonar response one at a time, as they are parsed, so that large responses never
+ * have to be held in memory.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public interface SonarComponentHandler {
+
+    /**
+     * @param component The next component of the response
+     * @throws Exception To stop reading the response
+     */
+    void component(SonarComponent component) throws Exception;
+}
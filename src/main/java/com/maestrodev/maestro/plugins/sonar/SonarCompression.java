@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed transfer of the Sonar responses. The transports ask for gzip or deflate with the
+ * {@link #ACCEPT_ENCODING} header and hand the body to {@link #decode(InputStream, String)}, which inflates it as it is
+ * read, so a response is never held whole in memory, compressed or not. The bytes received on the wire are counted
+ * apart from the decoded bytes the parsers read, see {@link Decoded#getWireBytes()}.
+ * <p/>
+ * Compression is on unless the <code>sonar.http.compression</code> system property is false, e.g. for a server that
+ * gets it wrong.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarCompression {
+
+    /**
+     * The value of the Accept-Encoding header of the requests
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private SonarCompression() {
+    }
+
+    /**
+     * @return Whether to ask for compressed responses
+     */
+    public static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty("sonar.http.compression"));
+    }
+
+    /**
+     * Decode a response body as it is read.
+     *
+     * @param in              The body as received
+     * @param contentEncoding The Content-Encoding header of the response, null if there is none
+     * @return The decoded body, counting the bytes received
+     * @throws IOException If the encoding is unknown or the gzip header can't be read, the body is closed then
+     */
+    public static Decoded decode(InputStream in, String contentEncoding) throws IOException {
+        WireCount wire = new WireCount(in);
+        try {
+            return decode(wire, contentEncoding);
+        } catch (IOException e) {
+            // closing the body hands a pooled connection back
+            closeQuietly(wire);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(wire);
+            throw e;
+        }
+    }
+
+    private static Decoded decode(WireCount wire, String contentEncoding) throws IOException {
+        String encoding = contentEncoding != null ? contentEncoding.trim().toLowerCase(Locale.ENGLISH) : "";
+        if (encoding.length() == 0 || "identity".equals(encoding)) {
+            return new Decoded(wire, wire);
+        }
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            // reads the gzip header
+            return new Decoded(new GZIPInputStream(wire, BUFFER_SIZE), wire);
+        }
+        if ("deflate".equals(encoding)) {
+            // zlib wrapped as the spec says, but some servers send a raw deflate stream
+            PushbackInputStream pushback = new PushbackInputStream(wire, 2);
+            int cmf = pushback.read();
+            int flg = cmf >= 0 ? pushback.read() : -1;
+            if (flg >= 0) {
+                pushback.unread(flg);
+            }
+            if (cmf >= 0) {
+                pushback.unread(cmf);
+            }
+            boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new Decoded(new OwnInflaterInputStream(pushback, new Inflater(!zlib)), wire);
+        }
+        throw new IOException("Unsupported Content-Encoding " + contentEncoding);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // the decoding failure is the one reported
+        }
+    }
+
+    /**
+     * A decoded response body, telling how many bytes were received for it so far.
+     */
+    public static final class Decoded extends FilterInputStream {
+        private final WireCount wire;
+
+        Decoded(InputStream decoded, WireCount wire) {
+            super(decoded);
+            this.wire = wire;
+        }
+
+        /**
+         * @return The bytes received on the wire so far, before decoding
+         */
+        public long getWireBytes() {
+            return wire.count;
+        }
+    }
+
+    /**
+     * Inflates with an inflater of its own, released when the stream is closed rather than on finalization as
+     * {@link InflaterInputStream} does with the inflaters it is given.
+     */
+    static final class OwnInflaterInputStream extends InflaterInputStream {
+        private boolean closed;
+
+        OwnInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the connection.
+     */
+    static final class WireCount extends FilterInputStream {
+        private long count;
+
+        WireCount(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keep-alive HTTP connection pool to one Sonar server, shared by every {@link SonarClient} of the JVM talking to that
+ * server so TCP and TLS sessions are reused across work items.
+ * <p/>
+ * Pools are configured with system properties:
+ * <ul>
+ * <li><code>sonar.http.maxConnections</code> the maximum number of connections to a server (default 20)</li>
+ * <li><code>sonar.http.connectTimeout</code> the connect timeout in milliseconds (default 10000)</li>
+ * <li><code>sonar.http.readTimeout</code> the socket read timeout in milliseconds (default 60000)</li>
+ * <li><code>sonar.http.idleTimeout</code> how long an unused connection is kept open, in milliseconds
+ * (default 30000)</li>
+ * </ul>
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarConnectionPool {
+    private static final Logger logger = Logger.getLogger(SonarConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final ConcurrentMap<String, SonarConnectionPool> POOLS = new ConcurrentHashMap<String, SonarConnectionPool>();
+
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sonar-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String server;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final long idleTimeout;
+    private final AtomicLong requests = new AtomicLong();
+
+    SonarConnectionPool(String server, int maxConnections, int connectTimeout, int readTimeout, long idleTimeout) {
+        this.server = server;
+        this.idleTimeout = idleTimeout;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                // the transport asks for compression and decodes the responses itself, counting the wire bytes
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * Get the pool of a server, creating it on first use.
+     *
+     * @param baseUrl The base URL of the Sonar server
+     * @return The pool shared by all the clients of that server
+     */
+    public static SonarConnectionPool forServer(String baseUrl) {
+        String server = serverOf(baseUrl);
+        SonarConnectionPool pool = POOLS.get(server);
+        if (pool == null) {
+            SonarConnectionPool created = new SonarConnectionPool(server,
+                    Integer.getInteger("sonar.http.maxConnections", DEFAULT_MAX_CONNECTIONS),
+                    Integer.getInteger("sonar.http.connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+                    Integer.getInteger("sonar.http.readTimeout", DEFAULT_READ_TIMEOUT),
+                    Integer.getInteger("sonar.http.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+            pool = POOLS.putIfAbsent(server, created);
+            if (pool == null) {
+                logger.log(Level.INFO, "created connection pool " + created);
+                created.scheduleEviction();
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return pool;
+    }
+
+    CloseableHttpClient getHttpClient() {
+        requests.incrementAndGet();
+        return httpClient;
+    }
+
+    /**
+     * @return The number of connections currently leased, available, pending and the maximum
+     */
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return The number of requests sent through this pool
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Close the connections that have not been used for longer than the idle timeout.
+     */
+    public void evictIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    private void scheduleEviction() {
+        long period = Math.max(1000, idleTimeout / 2);
+        EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    evictIdleConnections();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error evicting idle connections to " + server, e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The scheme, host and port of a URL, which identify the pool of a server
+     */
+    static String serverOf(String baseUrl) {
+        URI uri = URI.create(baseUrl);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarConnectionPool{" +
+            "server='" + server + '\'' +
+            ", requests=" + requests +
+            ", stats=" + getStats() +
+            '}';
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the equivalent base URLs a Sonar server can be reached at (the server itself, a read replica, a regional
+ * mirror...), with the latency and health observed on it. Endpoints are shared by every {@link SonarClient} of the
+ * JVM so what is learnt about them outlives the work items.
+ * <p/>
+ * The latency is tracked as an exponentially weighted moving average, used to pick the fastest endpoint, and over the
+ * last requests, used for percentiles. An endpoint failing with an overload (a 429 or 5xx answer, a timeout or a
+ * connection failure) is taken out of rotation for a while, doubling from one second up to thirty on consecutive
+ * failures.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarEndpoint {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final int RECENT_LATENCIES = 64;
+    private static final long MIN_DOWN_TIME = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_DOWN_TIME = TimeUnit.SECONDS.toNanos(30);
+
+    private static final ConcurrentMap<String, SonarEndpoint> ENDPOINTS = new ConcurrentHashMap<String, SonarEndpoint>();
+
+    private final String baseUrl;
+    private final SonarServerLimiter limiter;
+
+    // guarded by this
+    private double averageLatencyNanos;
+    private final long[] recentLatencies = new long[RECENT_LATENCIES];
+    private int latencies;
+    private int failures;
+    private long downUntil;
+
+    /**
+     * Create a new endpoint. Most callers want the shared {@link #forUrl(String)} instead.
+     *
+     * @param baseUrl The base URL of the endpoint
+     * @param limiter The limiter of the requests sent to the endpoint
+     */
+    SonarEndpoint(String baseUrl, SonarServerLimiter limiter) {
+        this.baseUrl = baseUrl;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Get the endpoint of a base URL, creating it on first use.
+     *
+     * @param baseUrl The base URL of the endpoint
+     * @return The endpoint shared by all the clients using that base URL
+     */
+    public static SonarEndpoint forUrl(String baseUrl) {
+        SonarEndpoint endpoint = ENDPOINTS.get(baseUrl);
+        if (endpoint == null) {
+            SonarEndpoint created = new SonarEndpoint(baseUrl, SonarServerLimiter.forServer(baseUrl));
+            endpoint = ENDPOINTS.putIfAbsent(baseUrl, created);
+            if (endpoint == null) {
+                endpoint = created;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return The endpoints used so far
+     */
+    static List<SonarEndpoint> all() {
+        return new ArrayList<SonarEndpoint>(ENDPOINTS.values());
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public SonarServerLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Record a successful request.
+     *
+     * @param latencyNanos How long the endpoint took to answer
+     */
+    public synchronized void success(long latencyNanos) {
+        averageLatencyNanos = latencies == 0
+                ? latencyNanos
+                : averageLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - averageLatencyNanos);
+        recentLatencies[latencies++ % RECENT_LATENCIES] = latencyNanos;
+        failures = 0;
+        downUntil = 0;
+    }
+
+    /**
+     * Record a failed request, taking the endpoint out of rotation if it is overloaded or unreachable.
+     *
+     * @param failure The failure
+     */
+    public synchronized void failure(IOException failure) {
+        if (failure instanceof SonarHttpException && !((SonarHttpException) failure).isServerOverloaded()) {
+            // the request was rejected, the endpoint is fine
+            return;
+        }
+        failures++;
+        long downTime = Math.min(MAX_DOWN_TIME, MIN_DOWN_TIME << Math.min(failures - 1, 16));
+        downUntil = System.nanoTime() + downTime;
+    }
+
+    /**
+     * @return true unless the endpoint was taken out of rotation after failing
+     */
+    public synchronized boolean isHealthy() {
+        return failures == 0 || System.nanoTime() - downUntil >= 0;
+    }
+
+    /**
+     * @return The average latency, 0 until a request succeeded
+     */
+    public synchronized double getAverageLatencyNanos() {
+        return averageLatencyNanos;
+    }
+
+    /**
+     * @return The number of latencies the percentiles are computed on, at most the last 64 requests
+     */
+    public synchronized int getLatencySamples() {
+        return Math.min(latencies, RECENT_LATENCIES);
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency of the recent requests at the percentile, 0 until a request succeeded
+     */
+    public synchronized long getLatencyPercentileNanos(double percentile) {
+        int samples = Math.min(latencies, RECENT_LATENCIES);
+        if (samples == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(recentLatencies, samples);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(samples * Math.min(100, Math.max(0, percentile)) / 100);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Order the endpoints to try a request on: the healthy ones first, fastest first, the ones never measured yet
+     * being tried before the others; then the ones out of rotation, the soonest back first.
+     *
+     * @param endpoints The endpoints
+     * @return The endpoints in the order they should be tried
+     */
+    static List<SonarEndpoint> byPreference(List<SonarEndpoint> endpoints) {
+        List<SonarEndpoint> healthy = new ArrayList<SonarEndpoint>(endpoints.size());
+        List<SonarEndpoint> down = new ArrayList<SonarEndpoint>();
+        for (SonarEndpoint endpoint : endpoints) {
+            (endpoint.isHealthy() ? healthy : down).add(endpoint);
+        }
+        // insertion sort, there are only a handful of endpoints
+        for (int i = 1; i < healthy.size(); i++) {
+            for (int j = i; j > 0 && healthy.get(j).getAverageLatencyNanos() < healthy.get(j - 1).getAverageLatencyNanos(); j--) {
+                healthy.set(j, healthy.set(j - 1, healthy.get(j)));
+            }
+        }
+        for (int i = 1; i < down.size(); i++) {
+            for (int j = i; j > 0 && down.get(j).getDownUntil() - down.get(j - 1).getDownUntil() < 0; j--) {
+                down.set(j, down.set(j - 1, down.get(j)));
+            }
+        }
+        healthy.addAll(down);
+        return healthy;
+    }
+
+    private synchronized long getDownUntil() {
+        return downUntil;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SonarEndpoint{" +
+            "baseUrl='" + baseUrl + '\'' +
+            ", averageLatencyMillis=" + String.format("%.1f", averageLatencyNanos / 1e6) +
+            ", failures=" + failures +
+            ", healthy=" + isHealthy() +
+            '}';
+    }
+}
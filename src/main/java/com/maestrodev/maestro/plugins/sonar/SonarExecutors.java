@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools shared by the Sonar workers of an agent, so that concurrent Sonar calls are bounded per JVM rather than
+ * per work item.
+ * <p/>
+ * The size of the fetch pool can be set with the <code>sonar.fetch.threads</code> system property.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+final class SonarExecutors {
+
+    static final int DEFAULT_FETCH_THREADS = 8;
+
+    private static final ExecutorService FETCH = newDaemonPool("sonar-fetch",
+            Integer.getInteger("sonar.fetch.threads", DEFAULT_FETCH_THREADS));
+
+    static final int DEFAULT_HEDGE_THREADS = 16;
+
+    private static final ExecutorService HEDGE = newDaemonPool("sonar-hedge",
+            Integer.getInteger("sonar.http.hedgeThreads", DEFAULT_HEDGE_THREADS));
+
+    private SonarExecutors() {
+    }
+
+    /**
+     * @return The pool used to run Sonar HTTP calls concurrently
+     */
+    static ExecutorService fetch() {
+        return FETCH;
+    }
+
+    /**
+     * @return The pool sending the requests of a hedged request, which race each other
+     */
+    static ExecutorService hedge() {
+        return HEDGE;
+    }
+
+    /**
+     * Create a fixed size pool of daemon threads, so an idle pool never keeps the agent from shutting down.
+     *
+     * @param name    The prefix of the thread names
+     * @param threads The number of threads
+     * @return The new pool
+     */
+    static ExecutorService newDaemonPool(final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the measures of projects to a file, one row per project, as newline delimited JSON or CSV, optionally
+ * gzipped. Rows are written as they come through a 64KB buffer onto the file channel, so memory does not grow with
+ * the number of projects.
+ * <p/>
+ * The rows go to a temporary file next to the target, which only replaces the target on {@link #commit()}: an
+ * export that fails half way leaves the previous file untouched.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarExportWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The formats of an export
+     */
+    public enum Format {
+        /**
+         * One JSON object per line, the project key under projectKey and each measure under its metric key
+         */
+        NDJSON,
+        /**
+         * A header line then one line per project, the project key then the measures in the order of the metrics
+         */
+        CSV;
+
+        /**
+         * @param format The name of the format in any case, or null to guess it from the file name
+         * @param file   The file exported to
+         * @return The format, NDJSON unless the format or the file name say CSV
+         * @throws IllegalArgumentException If the format is unknown
+         */
+        public static Format of(String format, String file) {
+            if (format != null && format.trim().length() > 0) {
+                try {
+                    return valueOf(format.trim().toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown export format '" + format + "', use ndjson or csv");
+                }
+            }
+            String name = file.toLowerCase(Locale.ENGLISH);
+            return name.endsWith(".csv") || name.endsWith(".csv.gz") ? CSV : NDJSON;
+        }
+    }
+
+    private final File file;
+    private final File temporary;
+    private final Format format;
+    private final String[] metrics;
+    private final Map<String, Integer> columns;
+    private final Writer writer;
+    private final StringBuilder row = new StringBuilder(256);
+    private long rows;
+    private boolean closed;
+
+    /**
+     * Open an export, writing the CSV header right away.
+     *
+     * @param file    The file to export to
+     * @param format  The format of the rows
+     * @param gzip    Whether to gzip the file
+     * @param metrics The keys of the metrics exported, the CSV columns
+     * @throws IOException If the temporary file could not be created
+     */
+    public SonarExportWriter(File file, Format format, boolean gzip, String[] metrics) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.format = format;
+        this.metrics = metrics.clone();
+        this.columns = new HashMap<String, Integer>(metrics.length * 2);
+        for (int i = 0; i < metrics.length; i++) {
+            columns.put(metrics[i], i);
+        }
+
+        File directory = this.file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory of " + this.file);
+        }
+        this.temporary = File.createTempFile(this.file.getName() + ".", ".tmp", directory);
+
+        FileChannel channel = new FileOutputStream(temporary).getChannel();
+        OutputStream out = Channels.newOutputStream(channel);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+
+        if (format == Format.CSV) {
+            row.append("projectKey");
+            for (String metric : metrics) {
+                row.append(',');
+                appendCsv(metric);
+            }
+            writeRow();
+        }
+    }
+
+    /**
+     * Write the row of a project. Measures of metrics that were not asked for are ignored.
+     *
+     * @param projectKey The project key
+     * @param measures   The measures of the project
+     * @throws IOException If the row could not be written
+     */
+    public void write(String projectKey, List<SonarMeasure> measures) throws IOException {
+        if (format == Format.CSV) {
+            SonarMeasure[] byColumn = new SonarMeasure[metrics.length];
+            for (SonarMeasure measure : measures) {
+                Integer column = columns.get(measure.getKey());
+                if (column != null) {
+                    byColumn[column] = measure;
+                }
+            }
+            appendCsv(projectKey);
+            for (SonarMeasure measure : byColumn) {
+                row.append(',');
+                if (measure != null) {
+                    if (measure.hasValue()) {
+                        appendNumber(measure.getValue());
+                    } else if (measure.getFormattedValue() != null) {
+                        appendCsv(measure.getFormattedValue());
+                    }
+                }
+            }
+        } else {
+            row.append("{\"projectKey\":");
+            appendJson(projectKey);
+            for (SonarMeasure measure : measures) {
+                if (!columns.containsKey(measure.getKey())) {
+                    continue;
+                }
+                row.append(',');
+                appendJson(measure.getKey());
+                row.append(':');
+                if (measure.hasValue()) {
+                    appendNumber(measure.getValue());
+                } else if (measure.getFormattedValue() != null) {
+                    appendJson(measure.getFormattedValue());
+                } else {
+                    row.append("null");
+                }
+            }
+            row.append('}');
+        }
+        writeRow();
+        rows++;
+    }
+
+    /**
+     * Finish the file and move it in place of the target.
+     *
+     * @throws IOException If the file could not be finished or moved
+     */
+    public void commit() throws IOException {
+        closed = true;
+        writer.close();
+        if (temporary.renameTo(file)) {
+            return;
+        }
+        // renaming over an existing file fails on Windows
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not move " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Abandon the export unless it was committed, deleting the temporary file.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                writer.close();
+            } finally {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * @return The number of project rows written
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void writeRow() throws IOException {
+        row.append('\n');
+        writer.append(row);
+        row.setLength(0);
+    }
+
+    private void appendNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            row.append((long) value);
+        } else {
+            row.append(value);
+        }
+    }
+
+    private void appendCsv(String value) {
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            row.append(value);
+            return;
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    private void appendJson(String value) {
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    row.append("\\\"");
+                    break;
+                case '\\':
+                    row.append("\\\\");
+                    break;
+                case '\n':
+                    row.append("\\n");
+                    break;
+                case '\r':
+                    row.append("\\r");
+                    break;
+                case '\t':
+                    row.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        row.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        row.append(c);
+                    }
+            }
+        }
+        row.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return "SonarExportWriter{" +
+            "file=" + file +
+            ", format=" + format +
+            ", rows=" + rows +
+            '}';
+    }
+}
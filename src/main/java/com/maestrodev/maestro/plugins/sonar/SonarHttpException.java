@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link SonarTransport} when the Sonar server answers with an error status.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarHttpException extends IOException {
+
+    private final int status;
+
+    /**
+     * @param status  The HTTP status of the response
+     * @param message The message
+     */
+    public SonarHttpException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return The HTTP status of the response
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if the server answered that it is overloaded or failing (429 or 5xx), rather than rejecting the
+     * request itself
+     */
+    public boolean isServerOverloaded() {
+        return status == 429 || status >= 500;
+    }
+}
@@ -4,43 +4,42 @@
 package com.maestrodev.maestro.plugins.sonar;
 
 /**
- * Represents a single Sonar measurement.
+ * Represents a single Sonar measurement. Measures are immutable; the value is held as a primitive double, NaN when
+ * Sonar returned no numeric value, and the key is interned so every measure of a metric shares one string.
+ * <p/>
+ * Footprint on a 64-bit JVM with compressed references: 32 bytes per measure (12 byte header, two references and
+ * a double), plus the formatted value string, against 48 bytes for the previous boxed representation.
  *
  * @author David Castro <dcastro@maestrodev.com>
  */
-public class SonarMeasure {
-    String formattedValue;
-    String key;
-    Object value;
+public final class SonarMeasure {
+    private final String key;
+    private final double value;
+    private final String formattedValue;
 
-    public SonarMeasure(String key, Object value, String formattedValue) {
-        this.key = key;
+    public SonarMeasure(String key, double value, String formattedValue) {
+        this.key = key != null ? key.intern() : null;
         this.value = value;
         this.formattedValue = formattedValue;
     }
 
-    public String getFormattedValue() {
-        return formattedValue;
-    }
-
-    public void setFormattedValue(String formattedValue) {
-        this.formattedValue = formattedValue;
-    }
-
     public String getKey() {
         return key;
     }
 
-    public void setKey(String key) {
-        this.key = key;
+    /**
+     * @return The numeric value, NaN if there is none
+     */
+    public double getValue() {
+        return value;
     }
 
-    public Object getValue() {
-        return value;
+    public boolean hasValue() {
+        return !Double.isNaN(value);
     }
 
-    public void setValue(String value) {
-        this.value = value;
+    public String getFormattedValue() {
+        return formattedValue;
     }
 
     @Override
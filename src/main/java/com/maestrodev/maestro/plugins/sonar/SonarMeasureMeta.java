@@ -3,15 +3,19 @@
  */
 package com.maestrodev.maestro.plugins.sonar;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
- * Represents Sonar metadata.
+ * Represents Sonar metadata. Metadata is immutable and only keeps the fields the plugin uses; key, name and domain
+ * are interned as they repeat across catalogues of every server and credentials.
+ * <p/>
+ * Footprint on a 64-bit JVM with compressed references: 40 bytes per metric (12 byte header, five references and
+ * an int, padded), the strings being shared, against two hash tables of boxed entries previously.
+ * <p/>
+ * The value type is kept as the server named it for the context, and as a {@link SonarValueType} for the plugin's own
+ * decisions, types unknown to the plugin being {@link SonarValueType#DATA} there.
  *
  * @author David Castro <dcastro@maestrodev.com>
  */
-public class SonarMeasureMeta extends HashMap implements Map {
+public final class SonarMeasureMeta {
     public static String MEASURE_DESCRIPTION_KEY = "description";
     public static String MEASURE_DIRECTION_KEY = "direction";
     public static String MEASURE_DOMAIN_KEY = "domain";
@@ -22,7 +26,89 @@ public class SonarMeasureMeta extends HashMap implements Map {
     public static String MEASURE_USER_MANAGED_KEY = "user_managed";
     public static String MEASURE_VALUE_TYPE_KEY = "val_type";
 
-    Map<String, Object> props = new HashMap<String, Object>();
+    private final String key;
+    private final String name;
+    private final String valueTypeName;
+    private final SonarValueType valueType;
+    private final int direction;
+    private final String domain;
+
+    public SonarMeasureMeta(String key, String name, SonarValueType valueType) {
+        this(key, name, valueType, 0);
+    }
+
+    public SonarMeasureMeta(String key, String name, SonarValueType valueType, int direction) {
+        this(key, name, valueType, direction, null);
+    }
+
+    public SonarMeasureMeta(String key, String name, SonarValueType valueType, int direction, String domain) {
+        this(key, name, valueType != null ? valueType.name() : null, valueType, direction, domain);
+    }
+
+    /**
+     * @param valueTypeName The <code>val_type</code> of the metric as sent by the server, may be unknown or null
+     */
+    public SonarMeasureMeta(String key, String name, String valueTypeName, int direction, String domain) {
+        this(key, name, valueTypeName, SonarValueType.fromString(valueTypeName), direction, domain);
+    }
+
+    private SonarMeasureMeta(String key, String name, String valueTypeName, SonarValueType valueType, int direction,
+                             String domain) {
+        this.key = key != null ? key.intern() : null;
+        this.name = name != null ? name.intern() : null;
+        this.valueTypeName = valueTypeName != null ? valueTypeName.intern() : null;
+        this.valueType = valueType;
+        this.direction = direction;
+        this.domain = domain != null ? domain.intern() : null;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The <code>val_type</code> as sent by the server, e.g. "PERCENT", may be null
+     */
+    public String getValueTypeName() {
+        return valueTypeName;
+    }
+
+    /**
+     * @return The value type, {@link SonarValueType#DATA} if the server sent one unknown to the plugin
+     */
+    public SonarValueType getValueType() {
+        return valueType;
+    }
+
+    /**
+     * @return 1 if higher values are better (e.g. coverage), -1 if lower values are better (e.g. violations), 0 if
+     * neither
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return The domain the metric belongs to, e.g. "Tests" or "Complexity", may be null
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarMeasureMeta{" +
+            "key='" + key + '\'' +
+            ", name='" + name + '\'' +
+            ", valueType=" + valueTypeName +
+            ", direction=" + direction +
+            ", domain='" + domain + '\'' +
+            '}';
+    }
 
     /**
      * Example Measure Meta
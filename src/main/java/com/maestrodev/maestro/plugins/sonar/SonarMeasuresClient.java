@@ -0,0 +1,770 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client talking to the measures web services of the servers from {@link SonarClient#MEASURES_API_VERSION} on:
+ * <code>/api/measures/component</code>, <code>/api/measures/search</code> for the measures of up to
+ * {@link #MAX_PROJECTS_PER_REQUEST} projects in one request, <code>/api/measures/component_tree</code>,
+ * <code>/api/measures/search_history</code>, and the paged <code>/api/metrics/search</code> and
+ * <code>/api/components/search</code>. Pages are requested one after the other as the previous one was read, each
+ * one streamed like the legacy responses.
+ * <p/>
+ * The measures web services return raw values only, so the formatted value of a measure is its raw value.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMeasuresClient extends SonarClient {
+    private static final Logger logger = Logger.getLogger(SonarMeasuresClient.class.getName());
+
+    /**
+     * The most projects <code>/api/measures/search</code> takes in one request
+     */
+    public static final int MAX_PROJECTS_PER_REQUEST = 100;
+
+    /**
+     * The page size of the paged web services, the largest they allow
+     */
+    static final int PAGE_SIZE = 500;
+
+    /**
+     * The page size of <code>/api/measures/search_history</code>, the largest it allows
+     */
+    static final int HISTORY_PAGE_SIZE = 1000;
+
+    /**
+     * The fields of <code>/api/metrics/search</code> the metadata is built from, the key and type come anyway. Leaves
+     * out the descriptions, most of the page otherwise.
+     */
+    static final String METRIC_FIELDS = "name,direction,domain";
+
+    private static String JSON_PAGING = "paging";
+    private static String JSON_PAGING_TOTAL = "total";
+    private static String JSON_METRICS = "metrics";
+    private static String JSON_METRIC_TYPE = "type";
+    private static String JSON_COMPONENT = "component";
+    private static String JSON_COMPONENTS = "components";
+    private static String JSON_COMPONENT_KEY = "key";
+    private static String JSON_COMPONENT_NAME = "name";
+    private static String JSON_COMPONENT_QUALIFIER = "qualifier";
+    private static String JSON_COMPONENT_ANALYSIS_DATE = "analysisDate";
+    private static String JSON_COMPONENT_VERSION = "version";
+    private static String JSON_MEASURES = "measures";
+    private static String JSON_MEASURE_METRIC = "metric";
+    private static String JSON_MEASURE_VALUE = "value";
+    private static String JSON_MEASURE_PERIOD = "period";
+    private static String JSON_MEASURE_PERIODS = "periods";
+    private static String JSON_MEASURE_HISTORY = "history";
+    private static String JSON_HISTORY_DATE = "date";
+
+    /**
+     * Create a client for the same server, transport, caches and timings as a legacy one.
+     *
+     * @param client The legacy client
+     */
+    public SonarMeasuresClient(SonarClient client) {
+        super(client);
+    }
+
+    @Override
+    public SonarMetricCatalogue getMetricCatalogue(String projectKey) throws Exception {
+        SonarMetricCatalogue cached = metaCache.getCatalogue(cacheKey);
+        if (cached != null) {
+            logger.log(Level.FINE, "using cached metrics meta for server {0}", baseUrl);
+            timings.cacheHit();
+            return cached;
+        }
+
+        try {
+            // concurrent misses share a single load, whatever the project as the catalogue is the same for all
+            return singleFlight.execute(cacheKey + "|/api/metrics", new Callable<SonarMetricCatalogue>() {
+                public SonarMetricCatalogue call() throws Exception {
+                    Map<String, SonarMeasureMeta> measureMetas = new HashMap<String, SonarMeasureMeta>();
+                    for (int page = 1; ; page++) {
+                        String url = baseUrl + "/api/metrics/search?ps=" + PAGE_SIZE + "&p=" + page + "&f=" + METRIC_FIELDS;
+                        logRequest(logger, Level.INFO, "metrics meta", url, null);
+
+                        InputStream in = open("meta", url);
+                        long start = System.nanoTime();
+                        int read = measureMetas.size();
+                        long total;
+                        try {
+                            total = parseMetricsPage(in, measureMetas);
+                        } finally {
+                            in.close();
+                            timings.stop("meta.parse", start);
+                        }
+                        // the server may serve smaller pages than asked for
+                        if (measureMetas.size() == read || measureMetas.size() >= total) {
+                            break;
+                        }
+                    }
+
+                    // the indexes are built once per load, then cached with the catalogue
+                    return metaCache.putCatalogue(cacheKey, new SonarMetricCatalogue(measureMetas));
+                }
+            });
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "There was an error retrieving measurement metas from sonar", e);
+            throw new Exception("There was an error retrieving measurement metas from sonar", e);
+        }
+    }
+
+    @Override
+    public SonarSnapshot getSnapshot(final String projectKey) throws Exception {
+        try {
+            final String url = baseUrl + "/api/components/show?component=" + projectKey;
+            logRequest(logger, Level.FINE, "snapshot", url, projectKey);
+
+            return singleFlight.execute(cacheKey + "|" + url, new Callable<SonarSnapshot>() {
+                public SonarSnapshot call() throws Exception {
+                    InputStream in = open("snapshot", url);
+                    long start = System.nanoTime();
+                    try {
+                        return parseComponentSnapshot(projectKey, in);
+                    } finally {
+                        in.close();
+                        timings.stop("snapshot.parse", start);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving the snapshot from sonar", e);
+        }
+    }
+
+    @Override
+    public List<String> getProjectKeys() throws Exception {
+        final List<String> projectKeys = new ArrayList<String>();
+        getComponentPages("projects", baseUrl + "/api/components/search?qualifiers=TRK", new SonarComponentHandler() {
+            public void component(SonarComponent component) {
+                projectKeys.add(component.getKey());
+            }
+        });
+        return projectKeys;
+    }
+
+    /**
+     * Get measures for the specified project and keys. <code>/api/measures/component</code> does not tell the date of
+     * the latest analysis, see {@link #isSnapshotInMeasures()}.
+     */
+    @Override
+    public SonarComponent getComponent(final String projectKey, String... measureKeys) throws Exception {
+        try {
+            final String url = baseUrl + "/api/measures/component?component=" + projectKey
+                    + "&metricKeys=" + StringUtils.join(measureKeys, ',');
+            logRequest(logger, Level.INFO, "metrics", url, projectKey);
+
+            // the same work item often runs in several compositions at once, they share one request
+            return singleFlight.execute(cacheKey + "|" + url, new Callable<SonarComponent>() {
+                public SonarComponent call() throws Exception {
+                    InputStream in = open("measures", url);
+                    long start = System.nanoTime();
+                    try {
+                        return unmodifiable(parseMeasuredComponent(projectKey, in));
+                    } finally {
+                        in.close();
+                        timings.stop("measures.parse", start);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving measurements from sonar", e);
+        }
+    }
+
+    /**
+     * Get the same measures for several projects, {@link #MAX_PROJECTS_PER_REQUEST} projects per request.
+     */
+    @Override
+    public Map<String, List<SonarMeasure>> getMeasures(List<String> projectKeys, String... measureKeys) throws Exception {
+        Map<String, List<SonarMeasure>> measures = new LinkedHashMap<String, List<SonarMeasure>>();
+        for (int from = 0; from < projectKeys.size(); from += MAX_PROJECTS_PER_REQUEST) {
+            List<String> chunk = projectKeys.subList(from, Math.min(projectKeys.size(), from + MAX_PROJECTS_PER_REQUEST));
+            measures.putAll(searchMeasures(chunk, measureKeys));
+        }
+        return measures;
+    }
+
+    @Override
+    public boolean isSnapshotInMeasures() {
+        return false;
+    }
+
+    @Override
+    public int getMaxProjectsPerRequest() {
+        return MAX_PROJECTS_PER_REQUEST;
+    }
+
+    private Map<String, List<SonarMeasure>> searchMeasures(final List<String> projectKeys, String... measureKeys) throws Exception {
+        try {
+            final String url = baseUrl + "/api/measures/search?projectKeys=" + StringUtils.join(projectKeys, ',')
+                    + "&metricKeys=" + StringUtils.join(measureKeys, ',');
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "requesting metrics of {0} projects from url {1}{2}",
+                        new Object[]{projectKeys.size(), url, MessageSuffix.forServer(username, baseUrl)});
+            }
+
+            return singleFlight.execute(cacheKey + "|" + url, new Callable<Map<String, List<SonarMeasure>>>() {
+                public Map<String, List<SonarMeasure>> call() throws Exception {
+                    InputStream in = open("measures", url);
+                    long start = System.nanoTime();
+                    try {
+                        return parseSearchMeasures(projectKeys, in);
+                    } finally {
+                        in.close();
+                        timings.stop("measures.parse", start);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving measurements from sonar", e);
+        }
+    }
+
+    /**
+     * Stream the components below a project with some of their measures, page by page. The measures web services
+     * have no depth: 1 only returns the children of the project, any other depth all the components below it.
+     * Classes are left out of the qualifiers, the servers offering these web services only know files.
+     */
+    @Override
+    public long getComponents(String projectKey, int depth, String qualifiers, SonarComponentHandler handler,
+                              String... measureKeys) throws Exception {
+        StringBuilder url = new StringBuilder(baseUrl).append("/api/measures/component_tree?component=").append(projectKey)
+                .append("&strategy=").append(depth == 1 ? "children" : "all")
+                .append("&metricKeys=").append(StringUtils.join(measureKeys, ','));
+        if (StringUtils.isNotEmpty(qualifiers)) {
+            List<String> kept = new ArrayList<String>();
+            for (String qualifier : StringUtils.split(qualifiers, ',')) {
+                if (!"CLA".equals(qualifier.trim())) {
+                    kept.add(qualifier.trim());
+                }
+            }
+            if (!kept.isEmpty()) {
+                url.append("&qualifiers=").append(StringUtils.join(kept, ','));
+            }
+        }
+        return getComponentPages("components", url.toString(), handler);
+    }
+
+    private long getComponentPages(String phase, String url, SonarComponentHandler handler) throws Exception {
+        try {
+            long count = 0;
+            for (int page = 1; ; page++) {
+                String pageUrl = url + "&ps=" + PAGE_SIZE + "&p=" + page;
+                logRequest(logger, Level.INFO, phase, pageUrl, null);
+
+                InputStream in = open(phase, pageUrl);
+                long start = System.nanoTime();
+                long[] read = new long[1];
+                long total;
+                try {
+                    total = parseComponentsPage(in, handler, read);
+                } finally {
+                    in.close();
+                    timings.stop(phase + ".parse", start);
+                }
+                count += read[0];
+                if (read[0] == 0 || count >= total) {
+                    return count;
+                }
+            }
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving " + phase + " from sonar", e);
+        }
+    }
+
+    @Override
+    public SonarTimeSeries getHistory(String projectKey, String fromDate, String toDate, String... measureKeys) throws Exception {
+        try {
+            StringBuilder url = new StringBuilder(baseUrl).append("/api/measures/search_history?component=").append(projectKey)
+                    .append("&metrics=").append(StringUtils.join(measureKeys, ','));
+            if (StringUtils.isNotEmpty(fromDate)) {
+                url.append("&from=").append(URLEncoder.encode(fromDate, "UTF-8"));
+            }
+            if (StringUtils.isNotEmpty(toDate)) {
+                url.append("&to=").append(URLEncoder.encode(toDate, "UTF-8"));
+            }
+
+            // the history comes by metric, it is turned into points once all the pages are in
+            List<String> metrics = new ArrayList<String>();
+            Map<String, double[]> points = new TreeMap<String, double[]>();
+            for (int page = 1; ; page++) {
+                String pageUrl = url + "&ps=" + HISTORY_PAGE_SIZE + "&p=" + page;
+                logRequest(logger, Level.INFO, "metrics history", pageUrl, projectKey);
+
+                InputStream in = open("history", pageUrl);
+                long start = System.nanoTime();
+                int read = points.size();
+                long total;
+                try {
+                    total = parseHistoryPage(in, metrics, points, measureKeys.length);
+                } finally {
+                    in.close();
+                    timings.stop("history.parse", start);
+                }
+                if (points.size() == read || points.size() >= total) {
+                    break;
+                }
+            }
+
+            SonarTimeSeries.Builder series = new SonarTimeSeries.Builder();
+            for (String metric : metrics) {
+                series.addMetric(metric);
+            }
+            for (Map.Entry<String, double[]> point : points.entrySet()) {
+                series.addPoint(point.getKey());
+                for (int column = 0; column < metrics.size(); column++) {
+                    series.setValue(column, point.getValue()[column]);
+                }
+            }
+            return series.build();
+        } catch (Exception e) {
+            throw new Exception("There was an error retrieving metrics history from sonar", e);
+        }
+    }
+
+    /**
+     * Parse a page of the metrics search into metadata.
+     *
+     * @param in           The <code>/api/metrics/search</code> response
+     * @param measureMetas Receives the metadata by metric key
+     * @return The total number of metrics on the server
+     * @throws IOException If the response could not be read or parsed
+     */
+    static long parseMetricsPage(InputStream in, Map<String, SonarMeasureMeta> measureMetas) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        long total = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_METRICS.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    SonarMeasureMeta meta = parseMetric(reader);
+                    measureMetas.put(meta.getKey(), meta);
+                }
+                reader.endArray();
+            } else if (JSON_PAGING_TOTAL.equals(name)) {
+                total = (long) reader.nextDouble();
+            } else if (JSON_PAGING.equals(name)) {
+                total = parsePagingTotal(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return total;
+    }
+
+    private static SonarMeasureMeta parseMetric(SonarJsonReader reader) throws IOException {
+        String key = null;
+        String name = null;
+        String valueType = null;
+        int direction = 0;
+        String domain = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_COMPONENT_KEY.equals(field)) {
+                key = reader.nextString();
+            } else if (SonarMeasureMeta.MEASURE_NAME_KEY.equals(field)) {
+                name = reader.nextString();
+            } else if (JSON_METRIC_TYPE.equals(field)) {
+                valueType = reader.nextString();
+            } else if (SonarMeasureMeta.MEASURE_DIRECTION_KEY.equals(field)) {
+                direction = reader.nextInt();
+            } else if (SonarMeasureMeta.MEASURE_DOMAIN_KEY.equals(field)) {
+                domain = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new SonarMeasureMeta(key, name, valueType, direction, domain);
+    }
+
+    /**
+     * Parse the analysis of a project out of its component.
+     *
+     * @param projectKey The project key
+     * @param in         The <code>/api/components/show</code> response
+     * @return The date and version of the latest analysis of the project
+     * @throws IOException If the response could not be read or parsed
+     */
+    static SonarSnapshot parseComponentSnapshot(String projectKey, InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        String date = null;
+        String version = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!JSON_COMPONENT.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == SonarJsonReader.Token.NULL) {
+                    reader.nextNull();
+                } else if (JSON_COMPONENT_ANALYSIS_DATE.equals(name)) {
+                    date = reader.nextString();
+                } else if (JSON_COMPONENT_VERSION.equals(name)) {
+                    version = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+
+        return new SonarSnapshot(projectKey, date, version);
+    }
+
+    /**
+     * Parse the measures of a component.
+     *
+     * @param in The <code>/api/measures/component</code> response
+     * @return The measures of the component
+     * @throws IOException If the response could not be read or parsed
+     */
+    static List<SonarMeasure> parseComponentMeasures(InputStream in) throws IOException {
+        return parseMeasuredComponent(null, in).getMeasures();
+    }
+
+    /**
+     * Parse a component with its measures.
+     *
+     * @param projectKey The key of the component requested, for a response without a component
+     * @param in         The <code>/api/measures/component</code> response
+     * @return The component, without measures if there was none in the response
+     * @throws IOException If the response could not be read or parsed
+     */
+    static SonarComponent parseMeasuredComponent(String projectKey, InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        SonarComponent component = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (JSON_COMPONENT.equals(reader.nextName())) {
+                component = parseComponent(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return component != null ? component : new SonarComponent(projectKey, null, null, Collections.<SonarMeasure>emptyList());
+    }
+
+    /**
+     * Parse the measures of several projects, which come as one flat list.
+     *
+     * @param projectKeys The projects requested, each one gets a list even if Sonar has no measure for it
+     * @param in          The <code>/api/measures/search</code> response
+     * @return The measures by project key, in the order of projectKeys
+     * @throws IOException If the response could not be read or parsed
+     */
+    static Map<String, List<SonarMeasure>> parseSearchMeasures(List<String> projectKeys, InputStream in) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        Map<String, List<SonarMeasure>> measures = new LinkedHashMap<String, List<SonarMeasure>>();
+        for (String projectKey : projectKeys) {
+            measures.put(projectKey, new ArrayList<SonarMeasure>());
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!JSON_MEASURES.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String[] component = new String[1];
+                SonarMeasure measure = parseMeasure(reader, component);
+                List<SonarMeasure> projectMeasures = measures.get(component[0]);
+                if (projectMeasures != null) {
+                    projectMeasures.add(measure);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        for (Map.Entry<String, List<SonarMeasure>> project : measures.entrySet()) {
+            project.setValue(Collections.unmodifiableList(project.getValue()));
+        }
+        return measures;
+    }
+
+    /**
+     * Parse a page of components, handing them over one at a time.
+     *
+     * @param in      The <code>/api/components/search</code> or <code>/api/measures/component_tree</code> response
+     * @param handler Receives the components
+     * @param read    Receives the number of components of the page
+     * @return The total number of components
+     * @throws Exception If the response could not be read or parsed, or the handler failed
+     */
+    static long parseComponentsPage(InputStream in, SonarComponentHandler handler, long[] read) throws Exception {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        long total = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_COMPONENTS.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    handler.component(parseComponent(reader));
+                    read[0]++;
+                }
+                reader.endArray();
+            } else if (JSON_PAGING.equals(name)) {
+                total = parsePagingTotal(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return total;
+    }
+
+    /**
+     * Parse a page of history, by metric, into points by date.
+     *
+     * @param in      The <code>/api/measures/search_history</code> response
+     * @param metrics Receives the metrics, in the order of the columns of the points
+     * @param points  Receives the values of the columns by date
+     * @param columns The number of metrics requested
+     * @return The total number of analyses
+     * @throws IOException If the response could not be read or parsed
+     */
+    static long parseHistoryPage(InputStream in, List<String> metrics, Map<String, double[]> points, int columns) throws IOException {
+        SonarJsonReader reader = new SonarJsonReader(in);
+        long total = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_PAGING.equals(name)) {
+                total = parsePagingTotal(reader);
+            } else if (JSON_MEASURES.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parseMetricHistory(reader, metrics, points, columns);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return total;
+    }
+
+    private static void parseMetricHistory(SonarJsonReader reader, List<String> metrics, Map<String, double[]> points,
+                                           int columns) throws IOException {
+        int column = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_MEASURE_METRIC.equals(name)) {
+                String metric = reader.nextString();
+                column = metrics.indexOf(metric);
+                if (column < 0) {
+                    column = metrics.size();
+                    metrics.add(metric);
+                }
+            } else if (JSON_MEASURE_HISTORY.equals(name) && column >= 0) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String date = null;
+                    double value = Double.NaN;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (reader.peek() == SonarJsonReader.Token.NULL) {
+                            reader.nextNull();
+                        } else if (JSON_HISTORY_DATE.equals(field)) {
+                            date = reader.nextString();
+                        } else if (JSON_MEASURE_VALUE.equals(field)) {
+                            value = toDouble(reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    double[] point = points.get(date);
+                    if (point == null) {
+                        point = new double[Math.max(columns, column + 1)];
+                        Arrays.fill(point, Double.NaN);
+                        points.put(date, point);
+                    } else if (column >= point.length) {
+                        int length = point.length;
+                        point = Arrays.copyOf(point, column + 1);
+                        Arrays.fill(point, length, point.length, Double.NaN);
+                        points.put(date, point);
+                    }
+                    point[column] = value;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static SonarComponent parseComponent(SonarJsonReader reader) throws IOException {
+        String key = null;
+        String name = null;
+        String qualifier = null;
+        List<SonarMeasure> measures = new ArrayList<SonarMeasure>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_COMPONENT_KEY.equals(field)) {
+                key = reader.nextString();
+            } else if (JSON_COMPONENT_NAME.equals(field)) {
+                name = reader.nextString();
+            } else if (JSON_COMPONENT_QUALIFIER.equals(field)) {
+                qualifier = reader.nextString();
+            } else if (JSON_MEASURES.equals(field)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    measures.add(parseMeasure(reader, null));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new SonarComponent(key, name, qualifier, measures);
+    }
+
+    /**
+     * Parse a measure. Measures of new code metrics have no value but the value of their period.
+     *
+     * @param component Receives the key of the component of the measure, if not null
+     */
+    private static SonarMeasure parseMeasure(SonarJsonReader reader, String[] component) throws IOException {
+        String key = null;
+        String value = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == SonarJsonReader.Token.NULL) {
+                reader.nextNull();
+            } else if (JSON_MEASURE_METRIC.equals(name)) {
+                key = reader.nextString();
+            } else if (JSON_MEASURE_VALUE.equals(name)) {
+                value = reader.nextString();
+            } else if (JSON_COMPONENT.equals(name) && component != null) {
+                component[0] = reader.nextString();
+            } else if (JSON_MEASURE_PERIOD.equals(name) && value == null) {
+                value = parsePeriodValue(reader);
+            } else if (JSON_MEASURE_PERIODS.equals(name) && value == null) {
+                reader.beginArray();
+                // the first period is the one of the new code
+                if (reader.hasNext()) {
+                    value = parsePeriodValue(reader);
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new SonarMeasure(key, toDouble(value), value);
+    }
+
+    private static String parsePeriodValue(SonarJsonReader reader) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (JSON_MEASURE_VALUE.equals(reader.nextName()) && reader.peek() != SonarJsonReader.Token.NULL) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private static long parsePagingTotal(SonarJsonReader reader) throws IOException {
+        long total = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (JSON_PAGING_TOTAL.equals(reader.nextName())) {
+                total = (long) reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return total;
+    }
+
+    /**
+     * @return The number, NaN if there is none: the values of the measures web services are strings, e.g. "OK" for
+     * a quality gate status
+     */
+    private static double toDouble(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SonarMeasuresClient{" +
+            "baseUrl='" + baseUrl + '\'' +
+            '}';
+    }
+}
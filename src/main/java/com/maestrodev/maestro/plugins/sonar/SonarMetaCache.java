@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of the Sonar metric metadata catalogue (<code>/api/metrics</code>), shared by every
+ * {@link SonarClient} in the JVM. Entries are keyed by server base URL and credentials, expire after a TTL and are
+ * evicted least-recently-used once the cache is full.
+ * <p/>
+ * The shared instance can be tuned with the <code>sonar.meta.cache.ttl</code> (milliseconds, 0 disables caching)
+ * and <code>sonar.meta.cache.maxEntries</code> system properties.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMetaCache {
+    private static final Logger logger = Logger.getLogger(SonarMetaCache.class.getName());
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final SonarMetaCache INSTANCE = new SonarMetaCache(
+            Long.getLong("sonar.meta.cache.ttl", DEFAULT_TTL_MILLIS),
+            Integer.getInteger("sonar.meta.cache.maxEntries", DEFAULT_MAX_ENTRIES));
+
+    private final LinkedHashMap<String, CachedCatalogue> entries;
+    private volatile long ttlMillis;
+    private volatile int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a new cache. Most callers want the shared {@link #getInstance()} instead.
+     *
+     * @param ttlMillis  How long a catalogue stays valid, in milliseconds. Zero or less disables caching
+     * @param maxEntries The maximum number of catalogues (servers/credentials) kept before evicting the oldest
+     */
+    public SonarMetaCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        // access ordered so iteration starts at the least recently used entry
+        this.entries = new LinkedHashMap<String, CachedCatalogue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCatalogue> eldest) {
+                if (size() > SonarMetaCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The cache shared by all Sonar clients in this JVM
+     */
+    public static SonarMetaCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Build the cache key for a server and set of credentials. The password is hashed so it is never held in
+     * clear text by the cache.
+     *
+     * @param baseUrl  The base URL of the Sonar server
+     * @param username The Sonar username, may be null
+     * @param password The Sonar password, may be null
+     * @return The cache key
+     */
+    public static String key(String baseUrl, String username, String password) {
+        return baseUrl + "|" + (username != null ? username : "") + "|" + (password != null ? DigestUtils.sha1Hex(password) : "");
+    }
+
+    /**
+     * Look up a cached catalogue, counting a hit or a miss.
+     *
+     * @param key The key built by {@link #key(String, String, String)}
+     * @return The metadata of the cached catalogue by metric key, or null if there is none or it expired
+     */
+    public Map<String, SonarMeasureMeta> get(String key) {
+        SonarMetricCatalogue catalogue = getCatalogue(key);
+        return catalogue != null ? catalogue.getMetas() : null;
+    }
+
+    /**
+     * Look up a cached catalogue with its indexes, counting a hit or a miss.
+     *
+     * @param key The key built by {@link #key(String, String, String)}
+     * @return The cached catalogue, or null if there is none or it expired
+     */
+    public synchronized SonarMetricCatalogue getCatalogue(String key) {
+        CachedCatalogue entry = entries.get(key);
+        if (entry != null && entry.isExpired(ttlMillis)) {
+            logger.log(Level.FINE, "metrics meta cache entry expired for " + key);
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.catalogue;
+    }
+
+    /**
+     * Store a catalogue. The stored map is read-only as it is shared between clients.
+     *
+     * @param key   The key built by {@link #key(String, String, String)}
+     * @param metas The catalogue to store
+     * @return The read-only view that was stored
+     */
+    public Map<String, SonarMeasureMeta> put(String key, Map<String, SonarMeasureMeta> metas) {
+        return putCatalogue(key, new SonarMetricCatalogue(metas)).getMetas();
+    }
+
+    /**
+     * Store a catalogue with its indexes.
+     *
+     * @param key       The key built by {@link #key(String, String, String)}
+     * @param catalogue The catalogue to store
+     * @return The catalogue
+     */
+    public synchronized SonarMetricCatalogue putCatalogue(String key, SonarMetricCatalogue catalogue) {
+        if (ttlMillis > 0) {
+            entries.put(key, new CachedCatalogue(catalogue));
+        }
+        return catalogue;
+    }
+
+    /**
+     * Drop the catalogue of a single server and set of credentials.
+     *
+     * @param key The key built by {@link #key(String, String, String)}
+     */
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Drop every cached catalogue.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarMetaCache{" +
+            "size=" + size() +
+            ", hits=" + hits +
+            ", misses=" + misses +
+            ", evictions=" + evictions +
+            '}';
+    }
+
+    private static class CachedCatalogue {
+        final SonarMetricCatalogue catalogue;
+        final long loadedAt = System.nanoTime();
+
+        CachedCatalogue(SonarMetricCatalogue catalogue) {
+            this.catalogue = catalogue;
+        }
+
+        boolean isExpired(long ttlMillis) {
+            return System.nanoTime() - loadedAt >= TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+    }
+}
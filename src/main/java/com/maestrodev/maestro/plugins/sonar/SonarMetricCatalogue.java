@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The metric metadata catalogue of a server, indexed by key and by domain. The index is built once per catalogue
+ * load and cached with it, so selecting metrics by domain or key pattern costs no more than a few lookups.
+ * <p/>
+ * Domains are matched ignoring case. Metrics without a domain are found under {@link #OTHER_DOMAIN}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarMetricCatalogue {
+
+    /**
+     * The domain of the metrics that have none
+     */
+    public static final String OTHER_DOMAIN = "Other";
+
+    private final Map<String, SonarMeasureMeta> metas;
+    // by lower case domain, the metrics in key order
+    private final Map<String, List<SonarMeasureMeta>> byDomain = new TreeMap<String, List<SonarMeasureMeta>>();
+    // by lower case domain, the domain as Sonar names it
+    private final Map<String, String> domainNames = new TreeMap<String, String>();
+
+    /**
+     * @param metas The metadata by metric key
+     */
+    public SonarMetricCatalogue(Map<String, SonarMeasureMeta> metas) {
+        this.metas = Collections.unmodifiableMap(metas);
+
+        for (SonarMeasureMeta meta : new TreeMap<String, SonarMeasureMeta>(metas).values()) {
+            String domain = meta.getDomain() != null && meta.getDomain().length() > 0 ? meta.getDomain() : OTHER_DOMAIN;
+            String index = domain.toLowerCase(Locale.ENGLISH);
+            List<SonarMeasureMeta> domainMetas = byDomain.get(index);
+            if (domainMetas == null) {
+                domainMetas = new ArrayList<SonarMeasureMeta>();
+                byDomain.put(index, domainMetas);
+                domainNames.put(index, domain);
+            }
+            domainMetas.add(meta);
+        }
+    }
+
+    /**
+     * @return The metadata by metric key, read-only
+     */
+    public Map<String, SonarMeasureMeta> getMetas() {
+        return metas;
+    }
+
+    /**
+     * @return The domains of the catalogue, as Sonar names them
+     */
+    public Collection<String> getDomains() {
+        return Collections.unmodifiableCollection(domainNames.values());
+    }
+
+    /**
+     * @param domain The domain, in any case
+     * @return The metrics of the domain in key order, empty if there is no such domain
+     */
+    public List<SonarMeasureMeta> getDomain(String domain) {
+        List<SonarMeasureMeta> domainMetas = byDomain.get(domain.toLowerCase(Locale.ENGLISH));
+        return domainMetas != null ? Collections.unmodifiableList(domainMetas) : Collections.<SonarMeasureMeta>emptyList();
+    }
+
+    /**
+     * Select metrics by domain and by key, grouped by domain. All the metrics of the requested domains are selected,
+     * except the ones holding bulky data (e.g. the line by line data of a file, or distributions) which are only
+     * selected when their key matches a pattern.
+     *
+     * @param domains  The domains to select, in any case
+     * @param patterns Regular expressions matched against the whole metric keys
+     * @return The keys of the selected metrics by domain, named as Sonar names them, in the order the domains were
+     * requested then in key order
+     * @throws IllegalArgumentException If a domain is unknown to the catalogue
+     */
+    public Map<String, String[]> select(Collection<String> domains, Collection<String> patterns) {
+        Map<String, Set<String>> selected = new LinkedHashMap<String, Set<String>>();
+
+        for (String domain : domains) {
+            String index = domain.toLowerCase(Locale.ENGLISH);
+            List<SonarMeasureMeta> domainMetas = byDomain.get(index);
+            if (domainMetas == null) {
+                throw new IllegalArgumentException("Unknown Sonar metric domain '" + domain + "', known domains are " + getDomains());
+            }
+            Set<String> keys = group(selected, domainNames.get(index));
+            for (SonarMeasureMeta meta : domainMetas) {
+                if (meta.getValueType() != SonarValueType.DATA && meta.getValueType() != SonarValueType.DISTRIB) {
+                    keys.add(meta.getKey());
+                }
+            }
+        }
+
+        if (!patterns.isEmpty()) {
+            List<Pattern> compiled = new ArrayList<Pattern>(patterns.size());
+            for (String pattern : patterns) {
+                compiled.add(Pattern.compile(pattern));
+            }
+            for (Map.Entry<String, List<SonarMeasureMeta>> domain : byDomain.entrySet()) {
+                for (SonarMeasureMeta meta : domain.getValue()) {
+                    for (Pattern pattern : compiled) {
+                        if (pattern.matcher(meta.getKey()).matches()) {
+                            group(selected, domainNames.get(domain.getKey())).add(meta.getKey());
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, String[]> groups = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, Set<String>> group : selected.entrySet()) {
+            groups.put(group.getKey(), group.getValue().toArray(new String[group.getValue().size()]));
+        }
+        return groups;
+    }
+
+    private Set<String> group(Map<String, Set<String>> selected, String domain) {
+        Set<String> keys = selected.get(domain);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            selected.put(domain, keys);
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarMetricCatalogue{" +
+            "metrics=" + metas.size() +
+            ", domains=" + domainNames.values() +
+            '}';
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide latency of each phase of the Sonar tasks, accumulated across all the work items run by the agent, with
+ * the bytes read and the cache hits. Durations go into power of two histograms (1us, 2us, 4us... buckets) so
+ * percentiles can be tracked over any number of runs in constant memory, within a factor of two.
+ * <p/>
+ * The shared instance is registered in the platform MBean server unless the <code>sonar.metrics.jmx</code> system
+ * property is false.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMetrics implements SonarMetricsMBean {
+    private static final Logger logger = Logger.getLogger(SonarMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "com.maestrodev.maestro.plugins.sonar:type=SonarMetrics";
+
+    private static final SonarMetrics INSTANCE = new SonarMetrics();
+
+    static {
+        if (Boolean.parseBoolean(System.getProperty("sonar.metrics.jmx", "true"))) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (Exception e) {
+                // already registered by another copy of the plugin, or no JMX at all: the metrics still work
+                logger.log(Level.WARNING, "Could not register the Sonar metrics MBean " + OBJECT_NAME, e);
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, PhaseStats> phases = new ConcurrentHashMap<String, PhaseStats>();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong wireBytesRead = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * @return The metrics shared by all the Sonar tasks in this JVM
+     */
+    public static SonarMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record a phase.
+     *
+     * @param phase The phase name, e.g. "meta.request"
+     * @param nanos How long it took, in nanoseconds
+     */
+    public void record(String phase, long nanos) {
+        PhaseStats stats = phases.get(phase);
+        if (stats == null) {
+            PhaseStats created = new PhaseStats();
+            stats = phases.putIfAbsent(phase, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(nanos);
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    public void addWireBytesRead(long bytes) {
+        wireBytesRead.addAndGet(bytes);
+    }
+
+    public void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void failover() {
+        failovers.incrementAndGet();
+    }
+
+    public void hedge() {
+        hedges.incrementAndGet();
+    }
+
+    public String[] getPhases() {
+        List<String> names = new ArrayList<String>(phases.keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    public String[] getPhaseSummaries() {
+        String[] names = getPhases();
+        String[] summaries = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String phase = names[i];
+            summaries[i] = String.format("%s count=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                    phase, getCount(phase), getMeanMillis(phase), getPercentileMillis(phase, 50),
+                    getPercentileMillis(phase, 95), getPercentileMillis(phase, 99), getMaxMillis(phase));
+        }
+        return summaries;
+    }
+
+    public long getCount(String phase) {
+        PhaseStats stats = phases.get(phase);
+        return stats == null ? 0 : stats.count.get();
+    }
+
+    public double getMeanMillis(String phase) {
+        PhaseStats stats = phases.get(phase);
+        long count = stats == null ? 0 : stats.count.get();
+        return count == 0 ? 0 : stats.totalNanos.get() / 1e6 / count;
+    }
+
+    public double getPercentileMillis(String phase, double percentile) {
+        PhaseStats stats = phases.get(phase);
+        return stats == null ? 0 : stats.percentileNanos(percentile) / 1e6;
+    }
+
+    public double getMaxMillis(String phase) {
+        PhaseStats stats = phases.get(phase);
+        return stats == null ? 0 : stats.maxNanos.get() / 1e6;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getWireBytesRead() {
+        return wireBytesRead.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getMetaCacheHits() {
+        return SonarMetaCache.getInstance().getHits();
+    }
+
+    public long getMetaCacheMisses() {
+        return SonarMetaCache.getInstance().getMisses();
+    }
+
+    public long getSnapshotCacheHits() {
+        return SonarSnapshotCache.getInstance().getHits();
+    }
+
+    public long getSnapshotCacheMisses() {
+        return SonarSnapshotCache.getInstance().getMisses();
+    }
+
+    public long getCoalescedRequests() {
+        return SonarSingleFlight.getInstance().getShared();
+    }
+
+    public long getReusedRequests() {
+        return SonarSingleFlight.getInstance().getReused();
+    }
+
+    public String[] getServerLimiters() {
+        List<SonarServerLimiter> limiters = SonarServerLimiter.all();
+        String[] descriptions = new String[limiters.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = limiters.get(i).toString();
+        }
+        return descriptions;
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    public long getHedgedRequests() {
+        return hedges.get();
+    }
+
+    public String[] getEndpoints() {
+        List<SonarEndpoint> endpoints = SonarEndpoint.all();
+        String[] descriptions = new String[endpoints.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = endpoints.get(i).toString();
+        }
+        return descriptions;
+    }
+
+    public void reset() {
+        phases.clear();
+        bytesRead.set(0);
+        wireBytesRead.set(0);
+        cacheHits.set(0);
+        failovers.set(0);
+        hedges.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("SonarMetrics{");
+        for (Map.Entry<String, PhaseStats> phase : phases.entrySet()) {
+            s.append(phase.getKey()).append('=').append(phase.getValue().count).append(", ");
+        }
+        return s.append("bytesRead=").append(bytesRead).append(", wireBytesRead=").append(wireBytesRead)
+                .append(", cacheHits=").append(cacheHits).append('}').toString();
+    }
+
+    /**
+     * Count, total, maximum and histogram of the durations of one phase. Bucket i holds the durations below 2^i
+     * microseconds, the last one everything above.
+     */
+    private static class PhaseStats {
+        private static final int BUCKETS = 40;
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            long micros = nanos / 1000;
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        long percentileNanos(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    // the upper bound of the bucket, never more than the slowest duration seen
+                    return Math.min((1L << i) * 1000, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+/**
+ * JMX view of the {@link SonarMetrics} of the plugin, registered as
+ * <code>com.maestrodev.maestro.plugins.sonar:type=SonarMetrics</code>.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public interface SonarMetricsMBean {
+
+    /**
+     * @return The phases recorded so far
+     */
+    String[] getPhases();
+
+    /**
+     * @return One line per phase with its count, mean, 50th, 95th and 99th percentiles and maximum, in milliseconds
+     */
+    String[] getPhaseSummaries();
+
+    long getCount(String phase);
+
+    double getMeanMillis(String phase);
+
+    /**
+     * @param phase      The phase name
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the duration under which the percentile falls, in milliseconds
+     */
+    double getPercentileMillis(String phase, double percentile);
+
+    double getMaxMillis(String phase);
+
+    long getBytesRead();
+
+    /**
+     * @return The bytes received for the responses, before they were decompressed
+     */
+    long getWireBytesRead();
+
+    long getCacheHits();
+
+    long getMetaCacheHits();
+
+    long getMetaCacheMisses();
+
+    long getSnapshotCacheHits();
+
+    long getSnapshotCacheMisses();
+
+    /**
+     * @return The number of requests that joined an identical request in flight instead of being sent
+     */
+    long getCoalescedRequests();
+
+    /**
+     * @return The number of requests served from the recent result of an identical request
+     */
+    long getReusedRequests();
+
+    /**
+     * @return One line per Sonar server with its current concurrency limit, requests in flight and queued
+     */
+    String[] getServerLimiters();
+
+    /**
+     * @return The number of requests sent to another endpoint after failing on the preferred one
+     */
+    long getFailovers();
+
+    /**
+     * @return The number of requests also sent to a second endpoint as the first one was slow to answer
+     */
+    long getHedgedRequests();
+
+    /**
+     * @return One line per endpoint with its average latency and health
+     */
+    String[] getEndpoints();
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset();
+}
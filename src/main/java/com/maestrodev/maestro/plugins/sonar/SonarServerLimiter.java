@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client-side limit of the requests sent to one Sonar server, shared by every {@link SonarClient} of the JVM talking
+ * to that server, so a burst of tasks slows down gracefully instead of collapsing the server.
+ * <p/>
+ * Two limits apply:
+ * <ul>
+ * <li>An adaptive concurrency limit (AIMD). It grows by one every time a full limit of requests succeeded and is cut
+ * by a quarter when a request fails with an overload (a 429 or 5xx answer, a timeout or a connection failure) or
+ * when the latency of a request climbs above twice the long term average of the requests of its phase, so a heavy
+ * call, e.g. the metric catalogue or a component tree, is not taken for a slow cheap one. It stays between 1 and
+ * <code>sonar.http.maxConnections</code>.</li>
+ * <li>An optional token bucket capping the request rate, set with the <code>sonar.http.rate</code> (requests per
+ * second, default 0: unlimited) and <code>sonar.http.burst</code> (default the rate) system properties.</li>
+ * </ul>
+ * Requests waiting for the concurrency limit are served first come first served, and give up after
+ * <code>sonar.http.queueTimeout</code> milliseconds (default 60000).
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarServerLimiter {
+    private static final Logger logger = Logger.getLogger(SonarServerLimiter.class.getName());
+
+    public static final int DEFAULT_QUEUE_TIMEOUT = 60000;
+
+    /**
+     * A request this many times slower than the average is taken as a sign of overload
+     */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double BACKOFF = 0.75;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    private static final int INITIAL_LIMIT = 4;
+
+    private static final ConcurrentMap<String, SonarServerLimiter> LIMITERS = new ConcurrentHashMap<String, SonarServerLimiter>();
+
+    private final String server;
+    private final int maxLimit;
+    private final long queueTimeoutNanos;
+
+    // the concurrency limit, guarded by this
+    private double limit;
+    private int inFlight;
+    private final LinkedList<Thread> queue = new LinkedList<Thread>();
+    private double averageLatencyNanos;
+    private final Map<String, double[]> phaseLatencyNanos = new HashMap<String, double[]>();
+    private boolean backedOff;
+    private long lastBackoff;
+
+    // the token bucket, guarded by this
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Create a new limiter. Most callers want the shared {@link #forServer(String)} instead.
+     *
+     * @param server         The server, for logging
+     * @param maxLimit       The highest concurrency limit
+     * @param rate           The highest rate, in requests per second, 0 or less for no rate limit
+     * @param burst          How many requests can be sent at once above the rate
+     * @param queueTimeoutMs How long a request waits for the concurrency limit, in milliseconds
+     */
+    SonarServerLimiter(String server, int maxLimit, double rate, double burst, long queueTimeoutMs) {
+        this.server = server;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+    }
+
+    /**
+     * Get the limiter of a server, creating it on first use.
+     *
+     * @param baseUrl The base URL of the Sonar server
+     * @return The limiter shared by all the clients of that server
+     */
+    public static SonarServerLimiter forServer(String baseUrl) {
+        String server = SonarConnectionPool.serverOf(baseUrl);
+        SonarServerLimiter limiter = LIMITERS.get(server);
+        if (limiter == null) {
+            double rate = Double.parseDouble(System.getProperty("sonar.http.rate", "0"));
+            SonarServerLimiter created = new SonarServerLimiter(server,
+                    Integer.getInteger("sonar.http.maxConnections", SonarConnectionPool.DEFAULT_MAX_CONNECTIONS),
+                    rate,
+                    Double.parseDouble(System.getProperty("sonar.http.burst", String.valueOf(Math.max(1, rate)))),
+                    Integer.getInteger("sonar.http.queueTimeout", DEFAULT_QUEUE_TIMEOUT));
+            limiter = LIMITERS.putIfAbsent(server, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return The limiters of all the servers used so far
+     */
+    static List<SonarServerLimiter> all() {
+        return new ArrayList<SonarServerLimiter>(LIMITERS.values());
+    }
+
+    /**
+     * Wait for the rate and the concurrency limits to let a request through. Every successful call must be followed by
+     * a call to {@link #release()} once the request is done.
+     *
+     * @throws IOException If the request waited for longer than the queue timeout, or the thread was interrupted
+     */
+    public void acquire() throws IOException {
+        try {
+            long wait = reserveToken();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            acquireSlot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request to " + server);
+        }
+    }
+
+    /**
+     * Record the outcome of a request, to adapt the concurrency limit.
+     *
+     * @param phase        The phase of the request, e.g. "meta", its latency is only compared with that of the
+     *                     requests of the same phase
+     * @param latencyNanos How long the server took to answer
+     * @param failure      The failure of the request, or null if it succeeded
+     */
+    public synchronized void sample(String phase, long latencyNanos, IOException failure) {
+        // a handful of phases, the calls of the client
+        double[] phaseAverage = phaseLatencyNanos.get(phase);
+        if (phaseAverage == null) {
+            phaseAverage = new double[1];
+            phaseLatencyNanos.put(phase, phaseAverage);
+        }
+        boolean overloaded = failure != null
+                ? !(failure instanceof SonarHttpException) || ((SonarHttpException) failure).isServerOverloaded()
+                : phaseAverage[0] > 0 && latencyNanos > LATENCY_TOLERANCE * phaseAverage[0];
+
+        if (failure == null) {
+            phaseAverage[0] = smooth(phaseAverage[0], latencyNanos);
+            averageLatencyNanos = smooth(averageLatencyNanos, latencyNanos);
+        }
+
+        if (overloaded) {
+            // back off at most once per round-trip, the requests in flight all see the same overload
+            long now = System.nanoTime();
+            if (!backedOff || now - lastBackoff >= averageLatencyNanos) {
+                backedOff = true;
+                lastBackoff = now;
+                limit = Math.max(1, limit * BACKOFF);
+                logger.log(Level.FINE, "backing off " + this);
+            }
+        } else if (failure == null) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    private static double smooth(double average, long latencyNanos) {
+        return average == 0 ? latencyNanos : average + LATENCY_SMOOTHING * (latencyNanos - average);
+    }
+
+    /**
+     * Let the next request through, the current one being done.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized long reserveToken() {
+        if (rate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        // the token is taken right away, going into debt makes the next requests wait in turn
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private synchronized void acquireSlot() throws InterruptedException, IOException {
+        Thread current = Thread.currentThread();
+        queue.addLast(current);
+        try {
+            long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (queue.getFirst() != current || inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting to send a request to " + server + ", " + this);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+        } finally {
+            queue.remove(current);
+            notifyAll();
+        }
+    }
+
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SonarServerLimiter{" +
+            "server='" + server + '\'' +
+            ", limit=" + String.format("%.1f", limit) +
+            ", inFlight=" + inFlight +
+            ", queued=" + queue.size() +
+            ", averageLatencyMillis=" + String.format("%.1f", averageLatencyNanos / 1e6) +
+            '}';
+    }
+}
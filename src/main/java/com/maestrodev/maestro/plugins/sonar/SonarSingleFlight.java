@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide coalescing of identical Sonar requests. While a request is in flight, the same request made by other
+ * work items waits for it and shares its result instead of hitting the server again. The result can also be reused
+ * for a short window after it came in, for work items arriving just after it.
+ * <p/>
+ * Results are shared between callers, so they must not be modified. Failures are shared by the callers waiting for
+ * them but never reused. The window of the shared instance can be set with the <code>sonar.coalesce.window</code>
+ * system property (milliseconds, default 0: only requests in flight are shared).
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarSingleFlight {
+
+    private static final SonarSingleFlight INSTANCE = new SonarSingleFlight(Long.getLong("sonar.coalesce.window", 0));
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private volatile long windowMillis;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * Create a new coalescing layer. Most callers want the shared {@link #getInstance()} instead.
+     *
+     * @param windowMillis How long a result is reused after it came in, in milliseconds, 0 to only share requests
+     *                     in flight
+     */
+    public SonarSingleFlight(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @return The coalescing layer shared by all Sonar clients in this JVM
+     */
+    public static SonarSingleFlight getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run a request, or join the identical request in flight, or reuse its recent result.
+     *
+     * @param key  Identifies the request, including the server and credentials it is made with
+     * @param call The request
+     * @return The result of the request, possibly shared with other callers
+     * @throws Exception The failure of the request
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Callable<T> call) throws Exception {
+        while (true) {
+            Flight flight = new Flight(call);
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                executed.incrementAndGet();
+                return (T) land(key, flight);
+            }
+
+            if (!existing.task.isDone()) {
+                shared.incrementAndGet();
+                return (T) await(existing);
+            }
+            if (!existing.isExpired(windowMillis)) {
+                reused.incrementAndGet();
+                return (T) await(existing);
+            }
+            // stale result of a previous request, replace it
+            flights.remove(key, existing);
+        }
+    }
+
+    private Object land(String key, Flight flight) throws Exception {
+        try {
+            flight.task.run();
+            return await(flight);
+        } catch (Exception e) {
+            flights.remove(key, flight);
+            throw e;
+        } finally {
+            flight.landedAt = System.nanoTime();
+            if (windowMillis <= 0) {
+                flights.remove(key, flight);
+            }
+            purgeExpired();
+        }
+    }
+
+    private Object await(Flight flight) throws Exception {
+        try {
+            return flight.task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void purgeExpired() {
+        for (Iterator<Flight> it = flights.values().iterator(); it.hasNext(); ) {
+            Flight flight = it.next();
+            if (flight.task.isDone() && flight.isExpired(windowMillis)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests actually sent
+     */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * @return The number of requests that joined an identical request in flight
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * @return The number of requests served from the recent result of an identical request
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarSingleFlight{" +
+            "executed=" + executed +
+            ", shared=" + shared +
+            ", reused=" + reused +
+            ", windowMillis=" + windowMillis +
+            '}';
+    }
+
+    private static class Flight {
+        final FutureTask<Object> task;
+        // 0 until the request landed
+        volatile long landedAt;
+
+        @SuppressWarnings("unchecked")
+        Flight(Callable<?> call) {
+            this.task = new FutureTask<Object>((Callable<Object>) call);
+        }
+
+        boolean isExpired(long windowMillis) {
+            long landed = landedAt;
+            return landed != 0 && System.nanoTime() - landed >= TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+/**
+ * Identifies one analysis of a Sonar project: the date and version the server reports for the project's latest
+ * snapshot. Two equal snapshots carry the same measures.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarSnapshot {
+    private final String projectKey;
+    private final String date;
+    private final String version;
+
+    public SonarSnapshot(String projectKey, String date, String version) {
+        this.projectKey = projectKey;
+        this.date = date;
+        this.version = version;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    /**
+     * @return The analysis date, e.g. 2014-08-24T19:05:49+0200
+     */
+    public String getDate() {
+        return date;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SonarSnapshot)) {
+            return false;
+        }
+        SonarSnapshot that = (SonarSnapshot) o;
+        return equal(projectKey, that.projectKey) && equal(date, that.date) && equal(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = projectKey != null ? projectKey.hashCode() : 0;
+        result = 31 * result + (date != null ? date.hashCode() : 0);
+        result = 31 * result + (version != null ? version.hashCode() : 0);
+        return result;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "SonarSnapshot{" +
+            "projectKey='" + projectKey + '\'' +
+            ", date='" + date + '\'' +
+            ", version='" + version + '\'' +
+            '}';
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide memory of the last metrics fetched for each project, together with the snapshot they were fetched
+ * from. As long as Sonar reports the same snapshot for a project, its metrics can be served from here instead of
+ * being fetched and processed again. Projects are evicted least-recently-used once the cache is full.
+ * <p/>
+ * The size of the shared instance can be set with the <code>sonar.snapshot.cache.maxEntries</code> system property.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarSnapshotCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final SonarSnapshotCache INSTANCE = new SonarSnapshotCache(
+            Integer.getInteger("sonar.snapshot.cache.maxEntries", DEFAULT_MAX_ENTRIES));
+
+    private final LinkedHashMap<String, CachedProject> entries;
+    private final int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a new cache. Most callers want the shared {@link #getInstance()} instead.
+     *
+     * @param maxEntries The maximum number of projects kept before evicting the least recently used
+     */
+    public SonarSnapshotCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CachedProject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedProject> eldest) {
+                return size() > SonarSnapshotCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The cache shared by all Sonar workers in this JVM
+     */
+    public static SonarSnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the metrics last fetched for a project if they were fetched from the given snapshot.
+     *
+     * @param serverKey The server and credentials, see {@link SonarMetaCache#key(String, String, String)}
+     * @param snapshot  The snapshot Sonar currently reports for the project
+     * @return The metrics, or null if none were fetched yet or they come from another snapshot
+     */
+    public synchronized Map<String, Object> get(String serverKey, SonarSnapshot snapshot) {
+        CachedProject entry = entries.get(serverKey + "|" + snapshot.getProjectKey());
+        if (entry == null || !entry.snapshot.equals(snapshot)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.metrics;
+    }
+
+    /**
+     * Tell whether metrics were fetched for a project, whatever their snapshot, without counting a hit or a miss.
+     *
+     * @param serverKey  The server and credentials, see {@link SonarMetaCache#key(String, String, String)}
+     * @param projectKey The project key
+     * @return true if metrics of the project are cached
+     */
+    public synchronized boolean contains(String serverKey, String projectKey) {
+        return entries.containsKey(serverKey + "|" + projectKey);
+    }
+
+    /**
+     * Remember the metrics fetched for a project, replacing those of any previous snapshot.
+     *
+     * @param serverKey The server and credentials, see {@link SonarMetaCache#key(String, String, String)}
+     * @param snapshot  The snapshot the metrics were fetched from
+     * @param metrics   The metrics, as put in the context
+     */
+    public synchronized void put(String serverKey, SonarSnapshot snapshot, Map<String, Object> metrics) {
+        entries.put(serverKey + "|" + snapshot.getProjectKey(), new CachedProject(snapshot, Collections.unmodifiableMap(metrics)));
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class CachedProject {
+        final SonarSnapshot snapshot;
+        final Map<String, Object> metrics;
+
+        CachedProject(SonarSnapshot snapshot, Map<String, Object> metrics) {
+            this.snapshot = snapshot;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent, append-only log of the measures fetched for each analysis of a project, so a fetch can tell how each
+ * measure moved since the previous analysis without asking Sonar for the history.
+ * <p/>
+ * The log is a single binary file, <code>snapshots.log</code>, in the store directory. Each record holds one analysis
+ * of one project: the offset of the previous record of the same project, the server and project key, the analysis
+ * date and version, then the numeric measures as metric key and double value pairs. The records of a project are
+ * chained through their previous offsets, so the only index kept in memory is the offset of the latest record of each
+ * project, rebuilt by scanning the log when the store is opened. Records are read through a read-only memory mapping
+ * of the file, extended as the log grows. A record cut short by a crash is dropped when the store is opened. The log
+ * is locked while the store is open, so a store directory can't be shared by several JVMs.
+ * <p/>
+ * The shared instance is stored in the directory given by the <code>sonar.store.dir</code> system property; there is
+ * none unless the property is set.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarSnapshotStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(SonarSnapshotStore.class.getName());
+
+    static final String FILE_NAME = "snapshots.log";
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int HEADER_SIZE = 8;
+    private static final int VERSION = 1;
+
+    private static final Object INSTANCE_LOCK = new Object();
+    private static SonarSnapshotStore instance;
+    private static boolean instanceOpened;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Map<String, Long> latest = new HashMap<String, Long>();
+    private MappedByteBuffer mapped;
+    private long size;
+
+    /**
+     * Open a store, creating its directory and log if needed. Most callers want the shared {@link #getInstance()}
+     * instead.
+     *
+     * @param directory The directory of the store
+     * @throws IOException If the log could not be created, read, is not a snapshot log or is in use by another store
+     */
+    public SonarSnapshotStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the snapshot store directory " + directory);
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        try {
+            lock();
+            open();
+        } catch (IOException e) {
+            // releases the lock too
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The store shared by all Sonar workers in this JVM, in the <code>sonar.store.dir</code> directory, or
+     *         null if the property is not set or the store could not be opened
+     */
+    public static SonarSnapshotStore getInstance() {
+        synchronized (INSTANCE_LOCK) {
+            if (!instanceOpened) {
+                instanceOpened = true;
+                String directory = System.getProperty("sonar.store.dir");
+                if (directory != null && directory.trim().length() > 0) {
+                    try {
+                        instance = new SonarSnapshotStore(new File(directory.trim()));
+                    } catch (IOException e) {
+                        // the fetches still work, without deltas
+                        logger.log(Level.WARNING, "Could not open the Sonar snapshot store in " + directory, e);
+                    }
+                }
+            }
+            return instance;
+        }
+    }
+
+    private void lock() throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another store of this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException(file + " is in use by another snapshot store");
+        }
+    }
+
+    private void open() throws IOException {
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is over 2GB, move it away to start a new log");
+        }
+        if (length == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(header, 0);
+            size = HEADER_SIZE;
+            return;
+        }
+
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (length < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a Sonar snapshot log");
+        }
+
+        long offset = HEADER_SIZE;
+        while (offset + 4 <= length) {
+            int recordLength = mapped.getInt((int) offset);
+            if (recordLength <= 0 || offset + 4 + recordLength > length) {
+                break;
+            }
+            latest.put(readKey(offset), offset);
+            offset += 4 + recordLength;
+        }
+        if (offset < length) {
+            logger.log(Level.WARNING, "dropping " + (length - offset) + " bytes of a truncated record at the end of " + file);
+            mapped = null;
+            channel.truncate(offset);
+        }
+        size = offset;
+    }
+
+    /**
+     * Record the measures of an analysis of a project, unless it is the latest recorded for the project already, and
+     * return the analysis before it.
+     *
+     * @param server   The base URL of the server, projects of different servers are kept apart
+     * @param snapshot The analysis the measures were fetched from
+     * @param measures The measures, those without a numeric value are not kept
+     * @return The latest analysis recorded for the project before this one, or null if there is none
+     * @throws IOException If the log could not be read or written
+     */
+    public synchronized StoredSnapshot record(String server, SonarSnapshot snapshot, Collection<SonarMeasure> measures)
+            throws IOException {
+        String key = server + "|" + snapshot.getProjectKey();
+        Long latestOffset = latest.get(key);
+        StoredSnapshot last = latestOffset != null ? read(latestOffset) : null;
+        if (last != null && last.getSnapshot().equals(snapshot)) {
+            // fetched again from the same analysis, compare with the one before
+            return last.previous >= 0 ? read(last.previous) : null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + measures.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(latestOffset != null ? latestOffset : -1);
+        writeString(out, key);
+        writeString(out, snapshot.getProjectKey());
+        writeString(out, snapshot.getDate());
+        writeString(out, snapshot.getVersion());
+        int count = 0;
+        for (SonarMeasure measure : measures) {
+            if (measure.hasValue()) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (SonarMeasure measure : measures) {
+            if (measure.hasValue()) {
+                writeString(out, measure.getKey());
+                out.writeDouble(measure.getValue());
+            }
+        }
+        out.flush();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - 4);
+        long offset = size;
+        while (record.hasRemaining()) {
+            channel.write(record, size + record.position());
+        }
+        size += record.limit();
+        latest.put(key, offset);
+        return last;
+    }
+
+    /**
+     * @param server     The base URL of the server
+     * @param projectKey The project key
+     * @return The latest analysis recorded for the project, or null if there is none
+     * @throws IOException If the log could not be read
+     */
+    public synchronized StoredSnapshot getLatest(String server, String projectKey) throws IOException {
+        Long offset = latest.get(server + "|" + projectKey);
+        return offset != null ? read(offset) : null;
+    }
+
+    /**
+     * @return The number of projects recorded
+     */
+    public synchronized int size() {
+        return latest.size();
+    }
+
+    /**
+     * @return The size of the log in bytes
+     */
+    public synchronized long getBytes() {
+        return size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        mapped = null;
+        raf.close();
+    }
+
+    private StoredSnapshot read(long offset) throws IOException {
+        ByteBuffer buffer = map(offset);
+        int position = (int) offset + 4;
+        long previous = buffer.getLong(position);
+        position += 8;
+        String[] strings = new String[4];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getShort(position) & 0xffff;
+            strings[i] = length > 0 ? readString(buffer, position + 2, length) : null;
+            position += 2 + length;
+        }
+        int count = buffer.getInt(position);
+        position += 4;
+        String[] keys = new String[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort(position) & 0xffff;
+            keys[i] = readString(buffer, position + 2, length).intern();
+            position += 2 + length;
+            values[i] = buffer.getDouble(position);
+            position += 8;
+        }
+        return new StoredSnapshot(new SonarSnapshot(strings[1], strings[2], strings[3]), previous, keys, values);
+    }
+
+    private String readKey(long offset) throws IOException {
+        int position = (int) offset + 12;
+        int length = mapped.getShort(position) & 0xffff;
+        return readString(mapped, position + 2, length);
+    }
+
+    /**
+     * @return The mapping of the log, extended to the end of the log if the record at offset is past it
+     */
+    private ByteBuffer map(long offset) throws IOException {
+        if (mapped == null || offset >= mapped.capacity()) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is over 2GB, move it away to start a new log");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped;
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value != null ? value.getBytes("UTF-8") : new byte[0];
+        if (bytes.length > 0xffff) {
+            throw new IOException("Value too long for the snapshot log: " + value.substring(0, 64) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "SonarSnapshotStore{" +
+            "file=" + file +
+            ", projects=" + latest.size() +
+            ", bytes=" + size +
+            '}';
+    }
+
+    /**
+     * The numeric measures recorded for one analysis of a project
+     */
+    public static final class StoredSnapshot {
+        private final SonarSnapshot snapshot;
+        private final long previous;
+        private final String[] keys;
+        private final double[] values;
+
+        StoredSnapshot(SonarSnapshot snapshot, long previous, String[] keys, double[] values) {
+            this.snapshot = snapshot;
+            this.previous = previous;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        public SonarSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @param metricKey The metric key
+         * @return The value recorded for the metric, NaN if there is none
+         */
+        public double getValue(String metricKey) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(metricKey)) {
+                    return values[i];
+                }
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "StoredSnapshot{" +
+                "snapshot=" + snapshot +
+                ", keys=" + Arrays.toString(keys) +
+                ", values=" + Arrays.toString(values) +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Quality thresholds on the measures of a project, e.g. <code>coverage &gt;= 80</code> or
+ * <code>blocker_violations == 0</code>, compiled once into flat arrays and checked without allocating.
+ * <p/>
+ * A rule is a metric key, an operator (<code>&gt;=</code>, <code>&gt;</code>, <code>&lt;=</code>, <code>&lt;</code>,
+ * <code>==</code> or <code>!=</code>) and a threshold. Without an operator the measure must be at least as good as the
+ * threshold, going by the direction of the metric: <code>coverage 80</code> is <code>coverage &gt;= 80</code> and
+ * <code>violations 100</code> is <code>violations &lt;= 100</code>. The threshold follows the value type of the
+ * metric: a number, a percentage (<code>80%</code>, PERCENT metrics), a rating from A to E (RATING metrics), a
+ * duration in d, h or min (WORK_DUR metrics, 8 hours a day), true or false (BOOL metrics) or a level compared with
+ * <code>==</code> or <code>!=</code> (LEVEL and STRING metrics, e.g. <code>alert_status == OK</code>). A rule is broken
+ * when the project has no measure for its metric.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarThresholds {
+
+    private static final int MAX_COMPILED = 256;
+    private static final ConcurrentMap<List<String>, SonarThresholds> COMPILED = new ConcurrentHashMap<List<String>, SonarThresholds>();
+
+    private static final Pattern RULE = Pattern.compile("^\\s*([\\w.:-]+)\\s*(?:(>=|<=|==|!=|>|<)\\s*|\\s+)(\\S+)\\s*$");
+    private static final Pattern DURATION = Pattern.compile("^(\\d+(?:\\.\\d+)?)(d|h|min)$");
+
+    private static final byte GE = 0;
+    private static final byte GT = 1;
+    private static final byte LE = 2;
+    private static final byte LT = 3;
+    private static final byte EQ = 4;
+    private static final byte NE = 5;
+    private static final byte AT_LEAST_AS_GOOD = 6;
+
+    private static final byte NUMBER = 0;
+    private static final byte PERCENT = 1;
+    private static final byte RATING = 2;
+    private static final byte DURATION_MINUTES = 3;
+    private static final byte BOOL = 4;
+    private static final byte TEXT = 5;
+
+    private final List<String> rules;
+    private final String[] metrics;
+    private final byte[] operators;
+    private final byte[] kinds;
+    private final double[] limits;
+    private final String[] texts;
+    private final String[] metricKeys;
+
+    private SonarThresholds(List<String> rules) {
+        int count = rules.size();
+        this.rules = Collections.unmodifiableList(new ArrayList<String>(rules));
+        this.metrics = new String[count];
+        this.operators = new byte[count];
+        this.kinds = new byte[count];
+        this.limits = new double[count];
+        this.texts = new String[count];
+
+        Set<String> keys = new LinkedHashSet<String>();
+        for (int i = 0; i < count; i++) {
+            String rule = rules.get(i);
+            Matcher matcher = RULE.matcher(rule);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid threshold '" + rule + "', expected <metric> <operator> <value>, e.g. coverage >= 80");
+            }
+            metrics[i] = matcher.group(1).intern();
+            operators[i] = operator(matcher.group(2));
+            compileValue(i, rule, matcher.group(3));
+            keys.add(metrics[i]);
+        }
+        this.metricKeys = keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Compile a set of rules, reusing the thresholds compiled earlier for the same rules.
+     *
+     * @param rules The rules, e.g. coverage &gt;= 80
+     * @return The thresholds, or null if there are no rules
+     * @throws IllegalArgumentException If a rule can't be parsed
+     */
+    public static SonarThresholds forRules(List<String> rules) {
+        if (rules == null || rules.isEmpty()) {
+            return null;
+        }
+        SonarThresholds thresholds = COMPILED.get(rules);
+        if (thresholds == null) {
+            thresholds = new SonarThresholds(rules);
+            if (COMPILED.size() >= MAX_COMPILED) {
+                // rule sets come from task definitions, this only happens if they are generated
+                COMPILED.clear();
+            }
+            COMPILED.putIfAbsent(thresholds.rules, thresholds);
+        }
+        return thresholds;
+    }
+
+    private static byte operator(String operator) {
+        if (operator == null) {
+            return AT_LEAST_AS_GOOD;
+        }
+        if (">=".equals(operator)) {
+            return GE;
+        }
+        if (">".equals(operator)) {
+            return GT;
+        }
+        if ("<=".equals(operator)) {
+            return LE;
+        }
+        if ("<".equals(operator)) {
+            return LT;
+        }
+        return "==".equals(operator) ? EQ : NE;
+    }
+
+    private void compileValue(int i, String rule, String value) {
+        String lower = value.toLowerCase(Locale.ENGLISH);
+        Matcher duration = DURATION.matcher(lower);
+        if (value.endsWith("%") && isNumber(value.substring(0, value.length() - 1))) {
+            kinds[i] = PERCENT;
+            limits[i] = Double.parseDouble(value.substring(0, value.length() - 1));
+        } else if (isNumber(value)) {
+            kinds[i] = NUMBER;
+            limits[i] = Double.parseDouble(value);
+        } else if (value.length() == 1 && lower.charAt(0) >= 'a' && lower.charAt(0) <= 'e') {
+            // A is 1, the best
+            kinds[i] = RATING;
+            limits[i] = lower.charAt(0) - 'a' + 1;
+        } else if (duration.matches()) {
+            kinds[i] = DURATION_MINUTES;
+            double amount = Double.parseDouble(duration.group(1));
+            String unit = duration.group(2);
+            limits[i] = "d".equals(unit) ? amount * 8 * 60 : "h".equals(unit) ? amount * 60 : amount;
+        } else if ("true".equals(lower) || "false".equals(lower)) {
+            kinds[i] = BOOL;
+            limits[i] = "true".equals(lower) ? 1 : 0;
+        } else {
+            if (operators[i] != EQ && operators[i] != NE && operators[i] != AT_LEAST_AS_GOOD) {
+                throw new IllegalArgumentException("Invalid threshold '" + rule + "', levels can only be compared with == or !=");
+            }
+            kinds[i] = TEXT;
+            texts[i] = value;
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return value.length() > 0 && Character.isDigit(value.charAt(value.length() - 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The keys of the metrics the rules are on, to be fetched with the other measures
+     */
+    public String[] getMetricKeys() {
+        return metricKeys.clone();
+    }
+
+    public List<String> getRules() {
+        return rules;
+    }
+
+    /**
+     * Check the measures of a project against the rules. Allocates nothing, so it can run on every project of a batch.
+     *
+     * @param metas    The metadata of the metrics, by key
+     * @param measures The measures of the project, those of other metrics are ignored
+     * @return true if no rule is broken
+     */
+    public boolean check(Map<String, SonarMeasureMeta> metas, List<SonarMeasure> measures) {
+        for (int i = 0; i < metrics.length; i++) {
+            if (!passes(i, metas.get(metrics[i]), find(measures, metrics[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Explain which rules the measures of a project break.
+     *
+     * @param metas    The metadata of the metrics, by key
+     * @param measures The measures of the project
+     * @return One line per rule broken, in the order of the rules, empty if none is
+     */
+    public List<String> report(Map<String, SonarMeasureMeta> metas, List<SonarMeasure> measures) {
+        List<String> broken = new ArrayList<String>();
+        for (int i = 0; i < metrics.length; i++) {
+            SonarMeasureMeta meta = metas.get(metrics[i]);
+            SonarMeasure measure = find(measures, metrics[i]);
+            if (passes(i, meta, measure)) {
+                continue;
+            }
+            String rule = rules.get(i).trim() + ": ";
+            if (meta == null) {
+                broken.add(rule + "unknown metric " + metrics[i]);
+            } else if (!appliesTo(kinds[i], meta.getValueType())) {
+                broken.add(rule + "the threshold does not apply to " + meta.getName() + " (" + meta.getValueTypeName() + ")");
+            } else if (measure == null || (kinds[i] == TEXT ? measure.getFormattedValue() == null : !measure.hasValue())) {
+                broken.add(rule + "no measure of " + meta.getName());
+            } else if (kinds[i] == TEXT) {
+                broken.add(rule + meta.getName() + " is " + measure.getFormattedValue());
+            } else if (kinds[i] == RATING && measure.getValue() >= 1 && measure.getValue() <= 5) {
+                broken.add(rule + meta.getName() + " is " + (char) ('A' + (int) measure.getValue() - 1));
+            } else {
+                String line = rule + meta.getName() + " is " + format(measure.getValue());
+                if (operator(i, meta) != EQ && operator(i, meta) != NE) {
+                    line += ", " + format(Math.abs(measure.getValue() - limits[i]))
+                            + (measure.getValue() < limits[i] ? " below " : " above ") + format(limits[i]);
+                }
+                broken.add(line);
+            }
+        }
+        return broken;
+    }
+
+    private boolean passes(int i, SonarMeasureMeta meta, SonarMeasure measure) {
+        if (meta == null || measure == null || !appliesTo(kinds[i], meta.getValueType())) {
+            return false;
+        }
+        if (kinds[i] == TEXT) {
+            boolean equal = measure.getFormattedValue() != null && texts[i].equalsIgnoreCase(measure.getFormattedValue());
+            return measure.getFormattedValue() != null && (operators[i] == NE ? !equal : equal);
+        }
+        if (!measure.hasValue()) {
+            return false;
+        }
+        double value = measure.getValue();
+        double limit = limits[i];
+        switch (operator(i, meta)) {
+            case GE:
+                return value >= limit;
+            case GT:
+                return value > limit;
+            case LE:
+                return value <= limit;
+            case LT:
+                return value < limit;
+            case EQ:
+                return value == limit;
+            default:
+                return value != limit;
+        }
+    }
+
+    /**
+     * @return The operator of a rule, the one meaning "at least as good" for the direction of the metric if it has none
+     */
+    private byte operator(int i, SonarMeasureMeta meta) {
+        if (operators[i] != AT_LEAST_AS_GOOD) {
+            return operators[i];
+        }
+        if (kinds[i] == RATING) {
+            // ratings go from A, 1, to E, 5
+            return LE;
+        }
+        return meta.getDirection() > 0 ? GE : meta.getDirection() < 0 ? LE : EQ;
+    }
+
+    private static boolean appliesTo(byte kind, SonarValueType type) {
+        switch (kind) {
+            case PERCENT:
+                return type == SonarValueType.PERCENT;
+            case RATING:
+                return type == SonarValueType.RATING;
+            case DURATION_MINUTES:
+                return type == SonarValueType.WORK_DUR;
+            case BOOL:
+                return type == SonarValueType.BOOL;
+            case TEXT:
+                return !type.isNumeric();
+            default:
+                return type.isNumeric();
+        }
+    }
+
+    private static SonarMeasure find(List<SonarMeasure> measures, String metric) {
+        if (measures == null) {
+            return null;
+        }
+        for (int i = 0, size = measures.size(); i < size; i++) {
+            SonarMeasure measure = measures.get(i);
+            // keys are interned on both sides
+            if (measure.getKey() == metric) {
+                return measure;
+            }
+        }
+        return null;
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    @Override
+    public String toString() {
+        return "SonarThresholds{" +
+            "rules=" + rules +
+            '}';
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The history of some metrics of a project, one point per analysis, stored by column: one array of dates and one
+ * array of primitive values per metric. Missing values are NaN. Series are immutable.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarTimeSeries {
+    private final String[] metrics;
+    private final String[] dates;
+    private final double[][] values;
+
+    SonarTimeSeries(String[] metrics, String[] dates, double[][] values) {
+        this.metrics = metrics;
+        this.dates = dates;
+        this.values = values;
+    }
+
+    /**
+     * @return The number of points
+     */
+    public int size() {
+        return dates.length;
+    }
+
+    public List<String> getMetrics() {
+        return Arrays.asList(metrics);
+    }
+
+    public String getDate(int point) {
+        return dates[point];
+    }
+
+    /**
+     * @param metric The metric key
+     * @param point  The index of the point, the oldest being 0
+     * @return The value, NaN if the metric had no value for that analysis or is not part of the series
+     */
+    public double getValue(String metric, int point) {
+        int column = Arrays.asList(metrics).indexOf(metric);
+        return column < 0 ? Double.NaN : values[column][point];
+    }
+
+    /**
+     * @param count The number of points to keep
+     * @return The series restricted to its latest points
+     */
+    public SonarTimeSeries last(int count) {
+        if (count >= size()) {
+            return this;
+        }
+        int from = size() - count;
+        double[][] kept = new double[metrics.length][];
+        for (int m = 0; m < metrics.length; m++) {
+            kept[m] = Arrays.copyOfRange(values[m], from, size());
+        }
+        return new SonarTimeSeries(metrics, Arrays.copyOfRange(dates, from, size()), kept);
+    }
+
+    /**
+     * Reduce the series to at most maxPoints points. Consecutive points are grouped in buckets of equal size; each
+     * bucket becomes one point dated like its latest analysis and holding the mean of its values, ignoring the
+     * missing ones. The latest point is always the latest analysis.
+     *
+     * @param maxPoints The maximum number of points to keep
+     * @return The downsampled series, or this series if it is small enough
+     */
+    public SonarTimeSeries downsample(int maxPoints) {
+        if (maxPoints <= 0 || size() <= maxPoints) {
+            return this;
+        }
+
+        String[] sampledDates = new String[maxPoints];
+        double[][] sampled = new double[metrics.length][maxPoints];
+        for (int bucket = 0; bucket < maxPoints; bucket++) {
+            // bucket boundaries spread the remainder evenly, the last bucket ends on the last point
+            int from = (int) ((long) bucket * size() / maxPoints);
+            int to = (int) ((long) (bucket + 1) * size() / maxPoints);
+            sampledDates[bucket] = dates[to - 1];
+            for (int m = 0; m < metrics.length; m++) {
+                double sum = 0;
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    if (!Double.isNaN(values[m][i])) {
+                        sum += values[m][i];
+                        count++;
+                    }
+                }
+                sampled[m][bucket] = count == 0 ? Double.NaN : sum / count;
+            }
+        }
+        return new SonarTimeSeries(metrics, sampledDates, sampled);
+    }
+
+    /**
+     * @return The series for the Maestro context: the metrics and dates lists, and the values list of each metric
+     * (null for missing values), by metric
+     */
+    public Map<String, Object> toContext() {
+        Map<String, Object> valuesByMetric = new HashMap<String, Object>();
+        for (int m = 0; m < metrics.length; m++) {
+            List<Double> column = new ArrayList<Double>(size());
+            for (double value : values[m]) {
+                column.add(Double.isNaN(value) ? null : value);
+            }
+            valuesByMetric.put(metrics[m], column);
+        }
+
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("metrics", getMetrics());
+        context.put("dates", Arrays.asList(dates));
+        context.put("values", valuesByMetric);
+        return context;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarTimeSeries{" +
+            "metrics=" + getMetrics() +
+            ", points=" + size() +
+            '}';
+    }
+
+    /**
+     * Accumulates a series point by point into growable primitive arrays.
+     */
+    static class Builder {
+        private final List<String> metrics = new ArrayList<String>();
+        private String[] dates = new String[16];
+        private double[][] values = new double[0][16];
+        private int size;
+
+        /**
+         * Add the metric of the next column. Columns may be declared before or after the points.
+         */
+        void addMetric(String metric) {
+            metrics.add(metric);
+        }
+
+        /**
+         * Start a new point, its values are NaN until set.
+         */
+        void addPoint(String date) {
+            if (size == dates.length) {
+                dates = Arrays.copyOf(dates, size * 2);
+                for (int m = 0; m < values.length; m++) {
+                    values[m] = Arrays.copyOf(values[m], size * 2);
+                }
+            }
+            dates[size] = date;
+            for (double[] column : values) {
+                column[size] = Double.NaN;
+            }
+            size++;
+        }
+
+        /**
+         * Set a value of the latest point.
+         */
+        void setValue(int column, double value) {
+            if (column >= values.length) {
+                double[][] grown = Arrays.copyOf(values, column + 1);
+                for (int m = values.length; m < grown.length; m++) {
+                    grown[m] = new double[dates.length];
+                    Arrays.fill(grown[m], Double.NaN);
+                }
+                values = grown;
+            }
+            values[column][size - 1] = value;
+        }
+
+        SonarTimeSeries build() {
+            double[][] columns = new double[metrics.size()][];
+            for (int m = 0; m < columns.length; m++) {
+                if (m < values.length) {
+                    columns[m] = Arrays.copyOf(values[m], size);
+                } else {
+                    columns[m] = new double[size];
+                    Arrays.fill(columns[m], Double.NaN);
+                }
+            }
+            return new SonarTimeSeries(metrics.toArray(new String[metrics.size()]), Arrays.copyOf(dates, size), columns);
+        }
+    }
+}
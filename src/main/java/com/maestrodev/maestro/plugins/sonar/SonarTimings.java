@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time spent in each phase of one work item (requests to Sonar, response parsing, context construction...), with
+ * the bytes read, as decoded and as received, and the cache hits. Phases can be recorded from several threads and
+ * repeated, the durations of a phase are then added up. Everything recorded is also added to the process-wide
+ * {@link SonarMetrics}.
+ * <p/>
+ * The request phase of a call lasts until the response headers are in, so it is mostly the time spent by the Sonar
+ * server; the parse phase reads the body while parsing it, so it covers the transfer and the plugin.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarTimings {
+
+    private final long createdAt = System.nanoTime();
+    private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong wireBytesRead = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final SonarMetrics metrics;
+
+    public SonarTimings() {
+        this(SonarMetrics.getInstance());
+    }
+
+    /**
+     * @param metrics The process-wide metrics everything is also recorded into
+     */
+    SonarTimings(SonarMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Record the end of a phase.
+     *
+     * @param phase The phase name, e.g. "meta.request"
+     * @param start When the phase started, in {@link System#nanoTime()} terms
+     */
+    public void stop(String phase, long start) {
+        record(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Record a phase.
+     *
+     * @param phase The phase name, e.g. "meta.request"
+     * @param nanos How long it took, in nanoseconds
+     */
+    public void record(String phase, long nanos) {
+        synchronized (phases) {
+            long[] phaseTimings = phases.get(phase);
+            if (phaseTimings == null) {
+                // count and total
+                phaseTimings = new long[2];
+                phases.put(phase, phaseTimings);
+            }
+            phaseTimings[0]++;
+            phaseTimings[1] += nanos;
+        }
+        metrics.record(phase, nanos);
+    }
+
+    public void cacheHit() {
+        cacheHits.incrementAndGet();
+        metrics.cacheHit();
+    }
+
+    /**
+     * Wrap a response body so the bytes read from it are counted when it is closed.
+     *
+     * @param in The response body
+     * @return The counting stream
+     */
+    public InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            private long count;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    count += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count += skipped;
+                return skipped;
+            }
+
+            @Override
+            public void close() throws IOException {
+                bytesRead.addAndGet(count);
+                metrics.addBytesRead(count);
+                count = 0;
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Record the bytes received for a response, compressed or not, where {@link #count(InputStream)} counts them
+     * decoded.
+     *
+     * @param bytes The bytes received
+     */
+    public void addWireBytesRead(long bytes) {
+        wireBytesRead.addAndGet(bytes);
+        metrics.addWireBytesRead(bytes);
+    }
+
+    /**
+     * @param phase The phase name
+     * @return The total time spent in the phase, in milliseconds, 0 if it was never recorded
+     */
+    public long getMillis(String phase) {
+        synchronized (phases) {
+            long[] phaseTimings = phases.get(phase);
+            return phaseTimings == null ? 0 : TimeUnit.NANOSECONDS.toMillis(phaseTimings[1]);
+        }
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getWireBytesRead() {
+        return wireBytesRead.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return The compact form put into the context: the milliseconds spent in each phase, the total since these
+     * timings were created, the bytes read, decoded and as received, and the cache hits
+     */
+    public Map<String, Object> toContext() {
+        Map<String, Object> phaseMillis = new LinkedHashMap<String, Object>();
+        synchronized (phases) {
+            for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+                phaseMillis.put(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()[1]));
+            }
+        }
+
+        Map<String, Object> context = new LinkedHashMap<String, Object>();
+        context.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAt));
+        context.put("phases", phaseMillis);
+        context.put("bytesRead", bytesRead.get());
+        context.put("wireBytesRead", wireBytesRead.get());
+        context.put("cacheHits", cacheHits.get());
+        return context;
+    }
+
+    @Override
+    public String toString() {
+        return "SonarTimings" + toContext();
+    }
+}
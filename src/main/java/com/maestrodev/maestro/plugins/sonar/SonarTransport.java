@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The HTTP layer used by {@link SonarClient} to call the Sonar web services.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public interface SonarTransport {
+
+    /**
+     * Send a GET request and stream the response body. The caller must close the returned stream.
+     *
+     * @param url The full URL to request
+     * @return The response body
+     * @throws IOException If the request failed or the server did not answer with a success status
+     */
+    InputStream get(String url) throws IOException;
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+/**
+ * The value types of Sonar metrics, as found in the <code>val_type</code> field of the metrics catalogue.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public enum SonarValueType {
+    INT, FLOAT, PERCENT, BOOL, STRING, MILLISEC, DATA, LEVEL, DISTRIB, RATING, WORK_DUR;
+
+    /**
+     * Look up a value type by its Sonar name. Types unknown to this plugin are treated as {@link #DATA}, so that newer
+     * servers don't break the parse; {@link SonarMeasureMeta#getValueTypeName()} keeps the name the server sent.
+     *
+     * @param name The Sonar name, e.g. "PERCENT"
+     * @return The value type, never null
+     */
+    public static SonarValueType fromString(String name) {
+        if (name != null) {
+            for (SonarValueType type : values()) {
+                if (type.name().equals(name)) {
+                    return type;
+                }
+            }
+        }
+        return DATA;
+    }
+
+    /**
+     * @return true for the types holding a number in the <code>val</code> field of a measure
+     */
+    public boolean isNumeric() {
+        return this != STRING && this != DATA && this != DISTRIB && this != LEVEL;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warm-up of the Sonar sources an agent works with, so its first task is not several times slower than the next ones.
+ * For each source it loads the classes of the client, fetches the metric metadata catalogue into the shared
+ * {@link SonarMetaCache} and opens connections in the shared pool of the server, resolving its host and negotiating
+ * TLS on the way.
+ * <p/>
+ * The warm-up runs once per JVM in the background when the first {@link SonarWorker} is created, for the source given
+ * by the <code>sonar.warmup.url</code> system property (several URLs of the same server can be given comma separated,
+ * as for the endpoints of a task), opening <code>sonar.warmup.connections</code> connections (default 2). The
+ * credentials are the <code>username</code> and <code>password</code> of the properties file named by the
+ * <code>sonar.warmup.credentials</code> system property, or else the <code>SONAR_WARMUP_USERNAME</code> and
+ * <code>SONAR_WARMUP_PASSWORD</code> environment variables, so the password is not on the command line. A task starting
+ * while the metadata are still loading waits for them instead of loading them again. The time taken is logged and
+ * recorded as the <code>warmup</code> phase of {@link SonarMetrics}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public final class SonarWarmup {
+    private static final Logger logger = Logger.getLogger(SonarWarmup.class.getName());
+
+    static final int DEFAULT_CONNECTIONS = 2;
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private SonarWarmup() {
+    }
+
+    /**
+     * Start warming up the source configured with the <code>sonar.warmup.*</code> system properties, the first time
+     * only. Returns right away, the warm-up runs on a daemon thread.
+     */
+    static void startOnce() {
+        final String urls = System.getProperty("sonar.warmup.url");
+        if (urls == null || urls.trim().length() == 0 || !STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Properties credentials = credentials(System.getProperty("sonar.warmup.credentials"));
+                    warmUp(Arrays.asList(urls.trim().split("\\s*,\\s*")),
+                            credentials.getProperty("username"),
+                            credentials.getProperty("password"),
+                            Integer.getInteger("sonar.warmup.connections", DEFAULT_CONNECTIONS));
+                } catch (Exception e) {
+                    // the tasks will do it the slow way
+                    logger.log(Level.WARNING, "Could not warm up Sonar server " + urls, e);
+                }
+            }
+        }, "sonar-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param path The properties file holding the credentials, null to take them from the environment
+     * @return The <code>username</code> and <code>password</code> to warm up with, missing if there are none
+     * @throws IOException If the file could not be read
+     */
+    static Properties credentials(String path) throws IOException {
+        Properties credentials = new Properties();
+        if (path != null && path.trim().length() > 0) {
+            InputStream in = new FileInputStream(new File(path.trim()));
+            try {
+                credentials.load(in);
+            } finally {
+                in.close();
+            }
+            return credentials;
+        }
+        String username = System.getenv("SONAR_WARMUP_USERNAME");
+        String password = System.getenv("SONAR_WARMUP_PASSWORD");
+        if (username != null) {
+            credentials.setProperty("username", username);
+        }
+        if (password != null) {
+            credentials.setProperty("password", password);
+        }
+        return credentials;
+    }
+
+    /**
+     * Warm up a Sonar source.
+     *
+     * @param urls        The base URLs of the server, as for a {@link SonarClient}
+     * @param username    The Sonar username
+     * @param password    The Sonar password
+     * @param connections The number of connections to open to the server
+     * @return How long the warm-up took, in milliseconds
+     * @throws Exception If the server could not be reached or the metadata could not be fetched
+     */
+    public static long warmUp(List<String> urls, String username, String password, int connections) throws Exception {
+        long start = System.nanoTime();
+        SonarClient client = new SonarClient(urls, username, password);
+        warmUp(client, connections);
+        long nanos = System.nanoTime() - start;
+
+        SonarMetrics.getInstance().record("warmup", nanos);
+        logger.log(Level.INFO, "warmed up Sonar server " + urls + " in " + nanos / 1000000 + "ms, " + client.getTimings().toContext());
+        return nanos / 1000000;
+    }
+
+    static void warmUp(final SonarClient client, int connections) throws Exception {
+        // the catalogue request opens the first connection, the others are opened at the same time with cheap calls
+        List<Future<?>> opened = new ArrayList<Future<?>>();
+        for (int i = 1; i < connections; i++) {
+            opened.add(SonarExecutors.fetch().submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return client.getServerVersion();
+                }
+            }));
+        }
+        client.getMetricCatalogue(null);
+        for (Future<?> future : opened) {
+            future.get();
+        }
+    }
+}
@@ -4,15 +4,35 @@
 package com.maestrodev.maestro.plugins.sonar;
 
 import com.maestrodev.maestro.plugins.MaestroWorker;
+import com.maestrodev.maestro.plugins.sonar.SonarClient.MessageSuffix;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * This is the main worker class of the maestro sonar plugin. It is used to
@@ -24,6 +44,23 @@ public class SonarWorker extends MaestroWorker {
 
     private static final Logger logger = Logger.getLogger(SonarWorker.class.getName());
     private SonarClient client;
+    SonarSnapshotCache snapshotCache = SonarSnapshotCache.getInstance();
+    SonarSnapshotStore snapshotStore = SonarSnapshotStore.getInstance();
+
+    /**
+     * Default time allowed for fetching everything for a work item, in seconds
+     */
+    static final int DEFAULT_TIMEOUT = 120;
+
+    /**
+     * Default number of projects of a batch fetched at the same time
+     */
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * Default time allowed for an export, in seconds
+     */
+    static final int DEFAULT_EXPORT_TIMEOUT = 3600;
 
     public static String[] TESTS_METRIC_NAMES = new String[]{
         "coverage", "branch_coverage", "line_coverage",
@@ -35,10 +72,75 @@ public class SonarWorker extends MaestroWorker {
     };
 
     /**
-     * Default constructor.
+     * The tests and rules metric keys as put in the context, in order, shared by all the projects
      */
-    public SonarWorker() {
+    private static final List<String> TESTS_LIST = Collections.unmodifiableList(Arrays.asList(TESTS_METRIC_NAMES));
+    private static final List<String> RULES_LIST = Collections.unmodifiableList(Arrays.asList(RULES_METRIC_NAMES));
+
+    /**
+     * The longest a context or list is allowed to get in a log message, see the <code>sonar.log.maxChars</code>
+     * system property
+     */
+    static final int DEFAULT_LOG_MAX_CHARS = 1000;
+    private static final int LOG_MAX_CHARS = Integer.getInteger("sonar.log.maxChars", DEFAULT_LOG_MAX_CHARS);
+
+    /**
+     * The metrics of the history when none are requested
+     */
+    static final String[] DEFAULT_HISTORY_METRIC_NAMES = new String[]{"coverage", "violations"};
+
+    /**
+     * Default maximum number of points of a history put into the context
+     */
+    static final int DEFAULT_HISTORY_POINTS = 50;
 
+    /**
+     * The metrics the components are ranked by when none are requested
+     */
+    static final String[] DEFAULT_WORST_METRIC_NAMES = new String[]{"coverage", "blocker_violations", "violations"};
+
+    /**
+     * The components ranked when no qualifiers are requested: classes and files
+     */
+    static final String DEFAULT_WORST_QUALIFIERS = "CLA,FIL";
+
+    /**
+     * Default number of worst components kept per metric
+     */
+    static final int DEFAULT_WORST_LIMIT = 10;
+
+    /**
+     * The metric groups fetched for a project, by context key, all requested in a single round-trip
+     */
+    static final Map<String, String[]> METRIC_GROUPS = new LinkedHashMap<String, String[]>();
+
+    /**
+     * Prefix of the metric groups selected by domain, so they never clash with the fixed groups
+     */
+    private static final String DOMAIN_GROUP_PREFIX = "domain:";
+
+    /**
+     * The values of the output field: a map per metric, the default, or lists of values sharing the metric keys
+     */
+    static final String OUTPUT_MAPS = "maps";
+    static final String OUTPUT_COMPACT = "compact";
+
+    /**
+     * The metric group of the quality thresholds, not put in the context
+     */
+    private static final String THRESHOLDS_GROUP = "thresholds:";
+
+    static {
+        METRIC_GROUPS.put("tests", TESTS_METRIC_NAMES);
+        METRIC_GROUPS.put("rules", RULES_METRIC_NAMES);
+    }
+
+    /**
+     * Default constructor. The first worker of the agent starts the warm-up of the Sonar source configured with the
+     * <code>sonar.warmup.*</code> system properties, if any.
+     */
+    public SonarWorker() {
+        SonarWarmup.startOnce();
     }
 
     /**
@@ -52,89 +154,324 @@ public class SonarWorker extends MaestroWorker {
             String url = getField("url");
             String username = getField("username");
             String password = getField("password");
-    
-            client = new SonarClient(url, username, password);
+
+            // other base URLs of the same server, e.g. read replicas, to fail over to
+            List<String> urls = new ArrayList<String>();
+            urls.add(url);
+            urls.addAll(getListField("endpoints"));
+            client = new SonarClient(urls, username, password);
         }
         return client;
     }
 
     /**
      * Fetches measures for the project key passed in by the work item and processes them all into the context for
-     * Maestro to store and use.
+     * Maestro to store and use. Unless the cache field is false, the metrics are reused from the last fetch of the
+     * project when Sonar still reports the same snapshot; the cached output tells which way they were obtained.
+     * <p/>
+     * Besides the tests and rules, metrics can be selected by domain (domains, e.g. Complexity) and by key
+     * (metricPatterns, regular expressions). They are fetched in the same request and put under domains.&lt;domain&gt;,
+     * organized like the tests, with the selected domains listed in domainsList.
      */
     public void fetchMetricsForProject() {
-        String projectKey = getField("projectKey");
+        final String projectKey = getField("projectKey");
         String url = validateUrl(getField("url"));
         String username = getField("username");
-        String messageSuffix = String.format(" for sonar project '%s' with username '%s' on server '%s'", projectKey, username, url);
+        MessageSuffix messageSuffix = new MessageSuffix(projectKey, username, url);
 
         try {
             Map<String, Object> context = getContext();
+            logger.log(Level.INFO, "getting sonar client{0}", messageSuffix);
+            final SonarClient client = getSonarClient().withApi(getField("api"));
 
-            logger.log(Level.INFO, "getting sonar client" + messageSuffix);
-            SonarClient client = getSonarClient();
+            // metrics can also be selected by domain and by key pattern, on top of the tests and rules
+            List<String> domains = getListField("domains");
+            List<String> metricPatterns = getListField("metricPatterns");
+            boolean selecting = !domains.isEmpty() || !metricPatterns.isEmpty();
+            String snapshotKey = selecting ? client.getCacheKey() + "|" + domains + "|" + metricPatterns : client.getCacheKey();
+            final SonarThresholds thresholds = SonarThresholds.forRules(getListField("thresholds"));
+            if (thresholds != null) {
+                snapshotKey += "|" + thresholds.getRules();
+            }
+            boolean compact = isCompactOutput();
+            if (compact) {
+                snapshotKey += "|" + OUTPUT_COMPACT;
+            }
 
-            // fetch all the metadata for the measures
-            logger.log(Level.INFO, "fetching metrics meta" + messageSuffix);
-            Map<String, SonarMeasureMeta> metas = client.getMeasureMeta(projectKey);
+            // the legacy web services tell the latest analysis along with the measures, it is only probed for ahead of
+            // them when there are metrics to reuse, and alongside them when the measures don't tell it
+            boolean cache = getBooleanField("cache", true);
+            boolean reusable = cache && snapshotCache.contains(snapshotKey, projectKey);
+            Future<SonarSnapshot> snapshotFuture = null;
+            if (reusable || ((cache || snapshotStore != null) && !client.isSnapshotInMeasures())) {
+                snapshotFuture = SonarExecutors.fetch().submit(
+                        new Callable<SonarSnapshot>() {
+                            public SonarSnapshot call() throws Exception {
+                                return client.getSnapshot(projectKey);
+                            }
+                        });
+            }
 
-            logger.log(Level.INFO, "fetching metrics" + messageSuffix);
-            List<SonarMeasure> testsMeasures = client.getMeasures(projectKey, TESTS_METRIC_NAMES);
-            List<SonarMeasure> rulesMeasures = client.getMeasures(projectKey, RULES_METRIC_NAMES);
-
-            /**
-             * Get all the values and push them into the context.  We want them to be organized like so:
-             *
-             * context : {
-             *   projectKey: "test",
-             *   projectLink: "http://localhost:9000/dashboard/index/test",
-             *   testsList: [branch_coverage, ...],
-             *   tests: {
-             *     branch_coverage: {
-             *       name: "Branch coverage",
-             *       value: 100,
-             *       formattedValue: "100%",
-             *       val_type: "PERCENT"
-             *     }
-             *   },
-             *   rulesList: [major_violations, ...],
-             *   rules: {
-             *     major_violations: {
-             *       name: "Major violations",
-             *       value: 80,
-             *       formattedValue: "80",
-             *       val_type: "INT"
-             *     }
-             *   }
-             * }
-             */
-            Map<String, Object> tests = processMeasures(metas, testsMeasures);
-            Map<String, Object> rules = processMeasures(metas, rulesMeasures);
+            // the metadata and the measures don't depend on each other, so fetch them concurrently under one deadline
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getTimeout());
+            logger.log(Level.INFO, "fetching metrics meta and metrics{0}", messageSuffix);
+            Future<SonarMetricCatalogue> catalogueFuture = SonarExecutors.fetch().submit(
+                    new Callable<SonarMetricCatalogue>() {
+                        public SonarMetricCatalogue call() throws Exception {
+                            return client.getMetricCatalogue(projectKey);
+                        }
+                    });
+            Future<SonarComponent> measuresFuture = null;
 
-            context.put("projectKey", projectKey);
-            context.put("projectLink", url + "/dashboard/index/" + projectKey);
-            context.put("tests", tests);
-            context.put("rules", rules);
+            SonarMetricCatalogue catalogue;
+            Map<String, List<SonarMeasure>> measures;
+            Map<String, String[]> selectedGroups = null;
+            SonarSnapshot snapshot = null;
+            try {
+                SonarSnapshot probed = null;
+                if (reusable) {
+                    // skip the fetch altogether if the project was not analyzed again since we last fetched it
+                    probed = probe(snapshotFuture, deadline, messageSuffix);
+                    Map<String, Object> cached = probed != null ? snapshotCache.get(snapshotKey, probed) : null;
+                    if (cached != null) {
+                        logger.log(Level.INFO, "using cached metrics of {0}{1}", new Object[]{probed, messageSuffix});
+                        client.getTimings().cacheHit();
+                        context.putAll(cached);
+                        context.put("cached", true);
+                        publish(context, client.getTimings());
+                        failOnThresholds(context, messageSuffix);
+                        return;
+                    }
+                }
+
+                final Map<String, String[]> metricGroups = new LinkedHashMap<String, String[]>(METRIC_GROUPS);
+                if (selecting) {
+                    // unless it is cached, the catalogue must be in before the selection can be resolved against it
+                    selectedGroups = await(catalogueFuture, deadline).select(domains, metricPatterns);
+                    for (Map.Entry<String, String[]> group : selectedGroups.entrySet()) {
+                        metricGroups.put(DOMAIN_GROUP_PREFIX + group.getKey(), group.getValue());
+                    }
+                    logger.log(Level.INFO, "selected metrics {0}{1}", new Object[]{capped(selectedGroups.keySet()), messageSuffix});
+                }
+                if (thresholds != null) {
+                    metricGroups.put(THRESHOLDS_GROUP, thresholds.getMetricKeys());
+                }
+                final String[] metricKeys = SonarClient.metricKeys(metricGroups);
+                measuresFuture = SonarExecutors.fetch().submit(
+                        new Callable<SonarComponent>() {
+                            public SonarComponent call() throws Exception {
+                                return client.getComponent(projectKey, metricKeys);
+                            }
+                        });
 
-            // add the list of tests for ordering
-            List<String> testsList = new ArrayList<String>();
-            for (String test : SonarWorker.TESTS_METRIC_NAMES) {
-                testsList.add(test);
+                catalogue = await(catalogueFuture, deadline);
+                SonarComponent component = await(measuresFuture, deadline);
+                measures = SonarClient.groupMeasures(component.getMeasures(), metricGroups);
+                if (component.getDate() != null) {
+                    snapshot = new SonarSnapshot(projectKey, component.getDate(), component.getVersion());
+                } else if (snapshotFuture != null) {
+                    snapshot = reusable ? probed : probe(snapshotFuture, deadline, messageSuffix);
+                }
+            } finally {
+                // no-op when they completed, stops the other calls when one of them failed or timed out
+                catalogueFuture.cancel(true);
+                if (measuresFuture != null) {
+                    measuresFuture.cancel(true);
+                }
+                if (snapshotFuture != null) {
+                    snapshotFuture.cancel(true);
+                }
             }
-            context.put("testsList", testsList);
 
-            // add the list of rules for ordering
-            List<String> rulesList = new ArrayList<String>();
-            for (String rule : SonarWorker.RULES_METRIC_NAMES) {
-                rulesList.add(rule);
+            long start = System.nanoTime();
+            Map<String, Object> project = new HashMap<String, Object>();
+            putProjectMetrics(project, url, projectKey, catalogue.getMetas(), measures, compact);
+            if (selectedGroups != null) {
+                Map<String, Object> domainMetrics = new LinkedHashMap<String, Object>();
+                for (Map.Entry<String, String[]> domain : selectedGroups.entrySet()) {
+                    List<SonarMeasure> domainMeasures = measures.get(DOMAIN_GROUP_PREFIX + domain.getKey());
+                    domainMetrics.put(domain.getKey(), compact
+                            ? processMeasuresCompact(Collections.unmodifiableList(Arrays.asList(domain.getValue())), domainMeasures)
+                            : processMeasures(catalogue.getMetas(), domainMeasures));
+                }
+                project.put("domains", domainMetrics);
+                project.put("domainsList", new ArrayList<String>(selectedGroups.keySet()));
+            }
+            if (compact) {
+                List<String[]> groups = new ArrayList<String[]>(METRIC_GROUPS.values());
+                if (selectedGroups != null) {
+                    groups.addAll(selectedGroups.values());
+                }
+                project.put("metrics", processMetas(catalogue.getMetas(), groups));
+            }
+            if (thresholds != null) {
+                putThresholds(project, thresholds, catalogue.getMetas(), measures.get(THRESHOLDS_GROUP));
+            }
+            if (snapshotStore != null && snapshot != null) {
+                putDeltas(project, client, snapshot, measures, compact);
+            }
+            client.getTimings().stop("processMeasures", start);
+            if (cache && snapshot != null) {
+                snapshotCache.put(snapshotKey, snapshot, project);
             }
-            context.put("rulesList", rulesList);
+            context.putAll(project);
+            context.put("cached", false);
+
+            logger.log(Level.FINE, "putting metrics into context_outputs for maestro to pick up {0}{1}",
+                    new Object[]{capped(context), messageSuffix});
+
+            publish(context, client.getTimings());
+            failOnThresholds(context, messageSuffix);
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Error retrieving metrics" + messageSuffix, e);
+            String err = e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e);
+            setError("Error retrieving metrics" + messageSuffix + ":\n" + err);
+        }
+    }
+
+    /**
+     * Fetches measures for several projects of the same server in one work item. The projects are given as a list of
+     * keys (projectKeys) and/or a regular expression matched against the keys of all the projects on the server
+     * (projectPattern). They are fetched with bounded concurrency and share a single metadata load. Each project ends
+     * up in the context under projects.&lt;projectKey&gt;, organized like the output of
+     * {@link #fetchMetricsForProject()}, together with the counts and throughput of the batch.
+     * <p/>
+     * Projects that fail are listed under failures; the work item only fails if no project could be fetched.
+     */
+    public void fetchMetricsForProjects() {
+        String url = validateUrl(getField("url"));
+        String username = getField("username");
+        MessageSuffix messageSuffix = new MessageSuffix(null, username, url);
+
+        try {
+            Map<String, Object> context = getContext();
+
+            logger.log(Level.INFO, "getting sonar client{0}", messageSuffix);
+            final SonarClient client = getSonarClient().withApi(getField("api"));
+
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(getTimeout());
 
-            if (logger.isLoggable(Level.INFO)) {
-                logger.log(Level.INFO, "putting metrics into context_outputs for maestro to pick up " + context + messageSuffix);
+            List<String> projectKeys = resolveProjectKeys(client);
+            if (projectKeys.isEmpty()) {
+                throw new IllegalArgumentException("No Sonar project to fetch, projectKeys is empty and projectPattern matched nothing");
             }
+            logger.log(Level.INFO, "fetching metrics for {0} projects{1}", new Object[]{projectKeys.size(), messageSuffix});
 
-            setContextOutputs(context);
+            // the metrics of the thresholds come in the same requests as the tests and rules
+            SonarThresholds thresholds = SonarThresholds.forRules(getListField("thresholds"));
+            boolean compact = isCompactOutput();
+            Map<String, String[]> metricGroups = METRIC_GROUPS;
+            if (thresholds != null) {
+                metricGroups = new LinkedHashMap<String, String[]>(METRIC_GROUPS);
+                metricGroups.put(THRESHOLDS_GROUP, thresholds.getMetricKeys());
+            }
+
+            // a single metadata load is shared by every project of the batch
+            final String metaProjectKey = projectKeys.get(0);
+            Future<Map<String, SonarMeasureMeta>> metasFuture = SonarExecutors.fetch().submit(
+                    new Callable<Map<String, SonarMeasureMeta>>() {
+                        public Map<String, SonarMeasureMeta> call() throws Exception {
+                            return client.getMeasureMeta(metaProjectKey);
+                        }
+                    });
+
+            Map<String, ProjectMeasures> fetched = new HashMap<String, ProjectMeasures>(projectKeys.size() * 2);
+            Map<String, SonarMeasureMeta> metas;
+            List<Future<ProjectMeasures>> futures = new ArrayList<Future<ProjectMeasures>>();
+            try {
+                // keep at most 'concurrency' requests in flight, each for as many projects as the web services take
+                CompletionService<ProjectMeasures> completion = new ExecutorCompletionService<ProjectMeasures>(SonarExecutors.fetch());
+                Iterator<List<String>> pending = partition(projectKeys, client.getMaxProjectsPerRequest()).iterator();
+                int concurrency = Math.max(1, getIntField("concurrency", DEFAULT_CONCURRENCY));
+                int inFlight = 0;
+                while (inFlight < concurrency && pending.hasNext()) {
+                    futures.add(completion.submit(new ProjectMeasures(client, pending.next(), metricGroups)));
+                    inFlight++;
+                }
+                while (inFlight > 0) {
+                    Future<ProjectMeasures> done = completion.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        throw new TimeoutException("Timed out after " + getTimeout() + " seconds waiting for Sonar, "
+                                + fetched.size() + " of " + projectKeys.size() + " projects fetched");
+                    }
+                    inFlight--;
+                    ProjectMeasures result = done.get();
+                    for (String projectKey : result.projectKeys) {
+                        fetched.put(projectKey, result);
+                    }
+                    if (pending.hasNext()) {
+                        futures.add(completion.submit(new ProjectMeasures(client, pending.next(), metricGroups)));
+                        inFlight++;
+                    }
+                }
+                metas = await(metasFuture, deadline);
+            } finally {
+                metasFuture.cancel(true);
+                for (Future<ProjectMeasures> future : futures) {
+                    future.cancel(true);
+                }
+            }
+
+            Map<String, Object> projects = new LinkedHashMap<String, Object>();
+            Map<String, Object> failures = new LinkedHashMap<String, Object>();
+            Map<String, Object> thresholdFailures = new LinkedHashMap<String, Object>();
+            for (String projectKey : projectKeys) {
+                ProjectMeasures result = fetched.get(projectKey);
+                if (result.error != null) {
+                    logger.log(Level.WARNING, "Error retrieving metrics for sonar project '" + projectKey + "'", result.error);
+                    failures.put(projectKey, String.valueOf(result.error.getMessage()));
+                    continue;
+                }
+                long processStart = System.nanoTime();
+                Map<String, Object> project = new HashMap<String, Object>();
+                putProjectMetrics(project, url, projectKey, metas, result.measures.get(projectKey), compact);
+                if (thresholds != null && !putThresholds(project, thresholds, metas, result.measures.get(projectKey).get(THRESHOLDS_GROUP))) {
+                    thresholdFailures.put(projectKey, project.get("thresholdsBroken"));
+                }
+                client.getTimings().stop("processMeasures", processStart);
+                projects.put(projectKey, project);
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Map<String, Object> batch = new HashMap<String, Object>();
+            batch.put("projects", projectKeys.size());
+            batch.put("succeeded", projects.size());
+            batch.put("failed", failures.size());
+            if (thresholds != null) {
+                batch.put("thresholdsBroken", thresholdFailures.size());
+            }
+            batch.put("elapsedMillis", elapsedMillis);
+            batch.put("projectsPerSecond", projectKeys.size() * 1000.0 / Math.max(1, elapsedMillis));
+            logger.log(Level.INFO, "fetched metrics {0}{1}", new Object[]{batch, messageSuffix});
+
+            context.put("projectKeys", projectKeys);
+            context.put("projects", projects);
+            if (compact) {
+                // the names and types of the metrics once for all the projects
+                context.put("metrics", processMetas(metas, METRIC_GROUPS.values()));
+            }
+            context.put("failures", failures);
+            if (thresholds != null) {
+                context.put("thresholdFailures", thresholdFailures);
+            }
+            context.put("batch", batch);
+
+            if (projects.isEmpty()) {
+                setError("Error retrieving metrics" + messageSuffix + ", all " + failures.size() + " projects failed: " + failures);
+                return;
+            }
+            publish(context, client.getTimings());
+            if (!thresholdFailures.isEmpty()) {
+                StringBuilder report = new StringBuilder();
+                for (Map.Entry<String, Object> failure : thresholdFailures.entrySet()) {
+                    for (Object line : (List<?>) failure.getValue()) {
+                        report.append('\n').append(failure.getKey()).append(": ").append(line);
+                    }
+                }
+                setError("Quality thresholds broken by " + thresholdFailures.size() + " of " + projects.size() + " projects"
+                        + messageSuffix + ":" + report);
+            }
         } catch (Throwable e) {
             logger.log(Level.WARNING, "Error retrieving metrics" + messageSuffix, e);
             String err = e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e);
@@ -142,6 +479,396 @@ public class SonarWorker extends MaestroWorker {
         }
     }
 
+    /**
+     * Exports measures of many projects, by default all the projects on the server, to a file on the agent: newline
+     * delimited JSON or CSV (format, guessed from the file name by default), gzipped if the gzip field is true or the
+     * file name ends with .gz. The metrics exported are given by the metrics field, the tests and rules metrics by
+     * default. Projects are selected as in {@link #fetchMetricsForProjects()}.
+     * <p/>
+     * The projects are fetched with bounded concurrency and each row is written as soon as its project is in, the next
+     * project only being requested once a row was written, so memory stays flat however many projects there are. Only
+     * a summary goes into the context under export, with the projects that failed under failures. The file is only
+     * replaced once the export is complete.
+     */
+    public void exportMetrics() {
+        String url = validateUrl(getField("url"));
+        String username = getField("username");
+        MessageSuffix messageSuffix = new MessageSuffix(null, username, url);
+
+        try {
+            Map<String, Object> context = getContext();
+
+            String file = getField("file");
+            if (file == null || file.trim().length() == 0) {
+                throw new IllegalArgumentException("The export file must not be empty");
+            }
+            file = file.trim();
+            SonarExportWriter.Format format = SonarExportWriter.Format.of(getField("format"), file);
+            boolean gzip = getBooleanField("gzip", file.toLowerCase().endsWith(".gz"));
+            List<String> metrics = getListField("metrics");
+            if (metrics.isEmpty()) {
+                metrics = new ArrayList<String>(Arrays.asList(TESTS_METRIC_NAMES));
+                metrics.addAll(Arrays.asList(RULES_METRIC_NAMES));
+            }
+            final String[] metricKeys = metrics.toArray(new String[metrics.size()]);
+
+            logger.log(Level.INFO, "getting sonar client{0}", messageSuffix);
+            final SonarClient client = getSonarClient().withApi(getField("api"));
+
+            int timeout = getIntField("timeout", DEFAULT_EXPORT_TIMEOUT);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+
+            List<String> projectKeys = resolveProjectKeys(client);
+            if (projectKeys.isEmpty() && getListField("projectKeys").isEmpty() && StringUtils.isBlank(getField("projectPattern"))) {
+                projectKeys = client.getProjectKeys();
+            }
+            logger.log(Level.INFO, "exporting metrics of {0} projects to {1}{2}", new Object[]{projectKeys.size(), file, messageSuffix});
+
+            Map<String, Object> failures = new LinkedHashMap<String, Object>();
+            SonarExportWriter writer = new SonarExportWriter(new File(file), format, gzip, metricKeys);
+            Set<Future<ProjectRows>> inFlight = new HashSet<Future<ProjectRows>>();
+            try {
+                // at most 'concurrency' requests in flight, each for as many projects as the web services take, the
+                // next one is only sent once the rows of a previous one were written
+                CompletionService<ProjectRows> completion = new ExecutorCompletionService<ProjectRows>(SonarExecutors.fetch());
+                Iterator<List<String>> pending = partition(projectKeys, client.getMaxProjectsPerRequest()).iterator();
+                int concurrency = Math.max(1, getIntField("concurrency", DEFAULT_CONCURRENCY));
+                while (inFlight.size() < concurrency && pending.hasNext()) {
+                    inFlight.add(completion.submit(new ProjectRows(client, pending.next(), metricKeys)));
+                }
+                while (!inFlight.isEmpty()) {
+                    Future<ProjectRows> done = completion.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        throw new TimeoutException("Timed out after " + timeout + " seconds waiting for Sonar, "
+                                + (writer.getRows() + failures.size()) + " of " + projectKeys.size() + " projects exported");
+                    }
+                    inFlight.remove(done);
+                    ProjectRows result = done.get();
+                    if (result.error != null) {
+                        logger.log(Level.WARNING, "Error retrieving metrics for sonar projects " + result.projectKeys, result.error);
+                        for (String projectKey : result.projectKeys) {
+                            failures.put(projectKey, String.valueOf(result.error.getMessage()));
+                        }
+                    } else {
+                        long writeStart = System.nanoTime();
+                        for (Map.Entry<String, List<SonarMeasure>> project : result.measures.entrySet()) {
+                            writer.write(project.getKey(), project.getValue());
+                        }
+                        client.getTimings().stop("export.write", writeStart);
+                    }
+                    if (pending.hasNext()) {
+                        inFlight.add(completion.submit(new ProjectRows(client, pending.next(), metricKeys)));
+                    }
+                }
+
+                if (writer.getRows() == 0 && !failures.isEmpty()) {
+                    setError("Error exporting metrics" + messageSuffix + ", all " + failures.size() + " projects failed: " + failures);
+                    return;
+                }
+                long commitStart = System.nanoTime();
+                writer.commit();
+                client.getTimings().stop("export.write", commitStart);
+            } finally {
+                writer.close();
+                for (Future<ProjectRows> future : inFlight) {
+                    future.cancel(true);
+                }
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Map<String, Object> export = new HashMap<String, Object>();
+            export.put("file", writer.getFile().getPath());
+            export.put("format", format.name().toLowerCase());
+            export.put("gzip", gzip);
+            export.put("projects", projectKeys.size());
+            export.put("exported", writer.getRows());
+            export.put("failed", failures.size());
+            export.put("bytes", writer.getFile().length());
+            export.put("elapsedMillis", elapsedMillis);
+            export.put("projectsPerSecond", projectKeys.size() * 1000.0 / Math.max(1, elapsedMillis));
+            logger.log(Level.INFO, "exported metrics {0}{1}", new Object[]{export, messageSuffix});
+
+            context.put("export", export);
+            context.put("failures", failures);
+            publish(context, client.getTimings());
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Error exporting metrics" + messageSuffix, e);
+            String err = e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e);
+            setError("Error exporting metrics" + messageSuffix + ":\n" + err);
+        }
+    }
+
+    /**
+     * Fetches the history of some metrics of the project key passed in by the work item, from the Sonar time machine.
+     * The date range (fromDate, toDate) is applied by the server; the history can then be restricted to the latest
+     * analyses and is downsampled to at most maxPoints points before being put into the context like so:
+     *
+     * context : {
+     *   projectKey: "test",
+     *   history: {
+     *     metrics: [coverage, violations],
+     *     dates: ["2014-08-01T19:05:49+0200", ...],
+     *     values: {
+     *       coverage: [94.1, ...],
+     *       violations: [120, ...]
+     *     }
+     *   }
+     * }
+     */
+    public void fetchMetricsHistory() {
+        String projectKey = getField("projectKey");
+        String url = validateUrl(getField("url"));
+        String username = getField("username");
+        MessageSuffix messageSuffix = new MessageSuffix(projectKey, username, url);
+
+        try {
+            Map<String, Object> context = getContext();
+
+            List<String> metrics = getListField("metrics");
+            if (metrics.isEmpty()) {
+                metrics = Arrays.asList(DEFAULT_HISTORY_METRIC_NAMES);
+            }
+
+            logger.log(Level.INFO, "fetching metrics history{0}", messageSuffix);
+            SonarClient client = getSonarClient().withApi(getField("api"));
+            SonarTimeSeries history = client.getHistory(projectKey, getField("fromDate"), getField("toDate"),
+                    metrics.toArray(new String[metrics.size()]));
+
+            int analyses = getIntField("analyses", 0);
+            if (analyses > 0) {
+                history = history.last(analyses);
+            }
+            history = history.downsample(getIntField("maxPoints", DEFAULT_HISTORY_POINTS));
+            logger.log(Level.INFO, "fetched {0}{1}", new Object[]{capped(history), messageSuffix});
+
+            context.put("projectKey", projectKey);
+            context.put("history", history.toContext());
+            publish(context, client.getTimings());
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Error retrieving metrics history" + messageSuffix, e);
+            String err = e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e);
+            setError("Error retrieving metrics history" + messageSuffix + ":\n" + err);
+        }
+    }
+
+    /**
+     * Finds the worst components (by default classes and files) of the project key passed in by the work item for
+     * each of the requested metrics, e.g. the files with the lowest coverage or the most violations. The components
+     * are streamed from Sonar and only the limit worst of each metric are kept, so projects of any size can be
+     * drilled into. The result is put into the context like so:
+     *
+     * context : {
+     *   projectKey: "test",
+     *   components: 1250,
+     *   worst: {
+     *     coverage: [
+     *       {key: "test:src/main/java/Foo.java", name: "Foo.java", value: 12.5, formattedValue: "12.5%"},
+     *       ...
+     *     ],
+     *     violations: [...]
+     *   }
+     * }
+     */
+    public void fetchWorstComponents() {
+        String projectKey = getField("projectKey");
+        String url = validateUrl(getField("url"));
+        String username = getField("username");
+        MessageSuffix messageSuffix = new MessageSuffix(projectKey, username, url);
+
+        try {
+            Map<String, Object> context = getContext();
+
+            List<String> metrics = getListField("metrics");
+            if (metrics.isEmpty()) {
+                metrics = Arrays.asList(DEFAULT_WORST_METRIC_NAMES);
+            }
+            List<String> qualifiers = getListField("qualifiers");
+            String qualifierList = qualifiers.isEmpty() ? DEFAULT_WORST_QUALIFIERS : StringUtils.join(qualifiers, ',');
+
+            SonarClient client = getSonarClient().withApi(getField("api"));
+
+            // the direction of the metrics tells which end is worst, it is usually served from the metadata cache
+            Map<String, SonarMeasureMeta> metas = client.getMeasureMeta(projectKey);
+
+            logger.log(Level.INFO, "fetching worst components by {0}{1}", new Object[]{capped(metrics), messageSuffix});
+            SonarWorstComponents worst = new SonarWorstComponents(getIntField("limit", DEFAULT_WORST_LIMIT), metas, metrics);
+            client.getComponents(projectKey, getIntField("depth", -1), qualifierList, worst,
+                    metrics.toArray(new String[metrics.size()]));
+            logger.log(Level.INFO, "ranked {0} components{1}", new Object[]{worst.getComponents(), messageSuffix});
+
+            context.put("projectKey", projectKey);
+            context.put("components", worst.getComponents());
+            context.put("worst", worst.toContext());
+            publish(context, client.getTimings());
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Error retrieving worst components" + messageSuffix, e);
+            String err = e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e);
+            setError("Error retrieving worst components" + messageSuffix + ":\n" + err);
+        }
+    }
+
+    /**
+     * Get all the values and push them into the target map.  We want them to be organized like so:
+     *
+     * context : {
+     *   projectKey: "test",
+     *   projectLink: "http://localhost:9000/dashboard/index/test",
+     *   testsList: [branch_coverage, ...],
+     *   tests: {
+     *     branch_coverage: {
+     *       name: "Branch coverage",
+     *       value: 100,
+     *       formattedValue: "100%",
+     *       val_type: "PERCENT"
+     *     }
+     *   },
+     *   rulesList: [major_violations, ...],
+     *   rules: {
+     *     major_violations: {
+     *       name: "Major violations",
+     *       value: 80,
+     *       formattedValue: "80",
+     *       val_type: "INT"
+     *     }
+     *   }
+     * }
+     *
+     * @param target     The map to put the project metrics into
+     * @param url        The Sonar server URL
+     * @param projectKey The Sonar project key
+     * @param metas      The metrics metadata
+     * @param measures   The measurements of the project, by metric group
+     */
+    static void putProjectMetrics(Map<String, Object> target, String url, String projectKey,
+                                  Map<String, SonarMeasureMeta> metas, Map<String, List<SonarMeasure>> measures,
+                                  boolean compact) {
+        target.put("projectKey", projectKey);
+        target.put("projectLink", url + "/dashboard/index/" + projectKey);
+        if (compact) {
+            target.put("tests", processMeasuresCompact(TESTS_LIST, measures.get("tests")));
+            target.put("rules", processMeasuresCompact(RULES_LIST, measures.get("rules")));
+        } else {
+            target.put("tests", processMeasures(metas, measures.get("tests")));
+            target.put("rules", processMeasures(metas, measures.get("rules")));
+        }
+
+        // add the lists of tests and rules for ordering
+        target.put("testsList", TESTS_LIST);
+        target.put("rulesList", RULES_LIST);
+    }
+
+    /**
+     * Record the measures of the analysis in the snapshot store and add to each tests and rules metric its change
+     * since the previous analysis recorded, as delta, with the date of that analysis as deltaSince. A store that
+     * fails only costs the deltas.
+     *
+     * @param project  The metrics of the project, as put in the context
+     * @param client   The Sonar client the measures were fetched with
+     * @param snapshot The analysis the measures were fetched from
+     * @param measures The measures by metric group
+     * @param compact  Whether the metrics are in the compact output, the deltas going in a deltas list then
+     */
+    @SuppressWarnings("unchecked")
+    private void putDeltas(Map<String, Object> project, SonarClient client, SonarSnapshot snapshot,
+                           Map<String, List<SonarMeasure>> measures, boolean compact) {
+        SonarSnapshotStore.StoredSnapshot previous;
+        try {
+            List<SonarMeasure> all = new ArrayList<SonarMeasure>();
+            for (List<SonarMeasure> group : measures.values()) {
+                all.addAll(group);
+            }
+            previous = snapshotStore.record(client.baseUrl, snapshot, all);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not record " + snapshot + " in " + snapshotStore, e);
+            return;
+        }
+        if (previous == null) {
+            return;
+        }
+        for (String group : new String[]{"tests", "rules"}) {
+            Map<String, Object> metrics = (Map<String, Object>) project.get(group);
+            if (compact) {
+                List<String> keys = (List<String>) metrics.get("keys");
+                List<Object> values = (List<Object>) metrics.get("values");
+                Object[] deltas = new Object[keys.size()];
+                for (int i = 0; i < deltas.length; i++) {
+                    double before = previous.getValue(keys.get(i));
+                    if (values.get(i) != null && !Double.isNaN(before)) {
+                        deltas[i] = (Double) values.get(i) - before;
+                    }
+                }
+                metrics.put("deltas", Arrays.asList(deltas));
+                continue;
+            }
+            for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+                Map<String, Object> o = (Map<String, Object>) metric.getValue();
+                double before = previous.getValue(metric.getKey());
+                if (o.get("value") != null && !Double.isNaN(before)) {
+                    o.put("delta", (Double) o.get("value") - before);
+                }
+            }
+        }
+        project.put("deltaSince", previous.getSnapshot().getDate());
+    }
+
+    /**
+     * Check the measures of a project against the quality thresholds, putting the outcome in thresholdsPassed and,
+     * when some are broken, one line per broken rule in thresholdsBroken.
+     *
+     * @param project    The metrics of the project, as put in the context
+     * @param thresholds The quality thresholds
+     * @param metas      The metrics metadata
+     * @param measures   The measures of the metrics of the thresholds
+     * @return true if no threshold is broken
+     */
+    static boolean putThresholds(Map<String, Object> project, SonarThresholds thresholds,
+                                 Map<String, SonarMeasureMeta> metas, List<SonarMeasure> measures) {
+        boolean passed = thresholds.check(metas, measures);
+        project.put("thresholdsPassed", passed);
+        if (!passed) {
+            project.put("thresholdsBroken", thresholds.report(metas, measures));
+        }
+        return passed;
+    }
+
+    /**
+     * Fail the work item if the project put in the context broke quality thresholds, keeping the context.
+     *
+     * @param context       The context outputs
+     * @param messageSuffix The project and server, for the error message
+     */
+    private void failOnThresholds(Map<String, Object> context, MessageSuffix messageSuffix) {
+        if (Boolean.FALSE.equals(context.get("thresholdsPassed"))) {
+            setError("Quality thresholds broken" + messageSuffix + ":\n"
+                    + StringUtils.join((List<?>) context.get("thresholdsBroken"), "\n"));
+        }
+    }
+
+    /**
+     * Resolve the projects of a batch from the projectKeys field (a list, or a comma separated string) and the
+     * projectPattern field (a regular expression matched against all the project keys on the server).
+     *
+     * @param client The Sonar client, only used if a pattern is given
+     * @return The project keys, without duplicates, in the order they were given
+     * @throws Exception If the projects could not be listed from Sonar
+     */
+    private List<String> resolveProjectKeys(SonarClient client) throws Exception {
+        Set<String> projectKeys = new LinkedHashSet<String>(getListField("projectKeys"));
+
+        String projectPattern = getField("projectPattern");
+        if (projectPattern != null && projectPattern.trim().length() > 0) {
+            Pattern pattern = Pattern.compile(projectPattern.trim());
+            for (String key : client.getProjectKeys()) {
+                if (pattern.matcher(key).matches()) {
+                    projectKeys.add(key);
+                }
+            }
+        }
+
+        return new ArrayList<String>(projectKeys);
+    }
+
     /**
      * Take the metrics data and metadata and adds the proper objects into the context, so that Maestro
      * can save them for display in the UI
@@ -150,15 +877,16 @@ public class SonarWorker extends MaestroWorker {
      * @param measures The measurements for a Sonar domain we want to process into the context
      * @return An object that represents all metrics for a Sonar domain we want to send back
      */
-    private Map<String, Object> processMeasures(Map<String, SonarMeasureMeta> metas, List<SonarMeasure> measures) {
-        Map<String, Object> domainObject = new HashMap<String, Object>();
+    static Map<String, Object> processMeasures(Map<String, SonarMeasureMeta> metas, List<SonarMeasure> measures) {
+        // sized so they never rehash, a delta may be added to the metrics
+        Map<String, Object> domainObject = new HashMap<String, Object>(measures.size() * 4 / 3 + 1);
         for (SonarMeasure m : measures) {
             // the meta data for sonar metrics
             SonarMeasureMeta meta = metas.get(m.getKey());
-            Map<String, Object> o = new HashMap<String, Object>();
-            o.put(SonarMeasureMeta.MEASURE_NAME_KEY, meta.get(SonarMeasureMeta.MEASURE_NAME_KEY));
-            o.put(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY, meta.get(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY));
-            o.put("value", m.getValue());
+            Map<String, Object> o = new HashMap<String, Object>(8);
+            o.put(SonarMeasureMeta.MEASURE_NAME_KEY, meta.getName());
+            o.put(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY, meta.getValueTypeName());
+            o.put("value", m.hasValue() ? m.getValue() : null);
             o.put("formattedValue", m.getFormattedValue());
             domainObject.put(m.getKey(), o);
         }
@@ -166,6 +894,236 @@ public class SonarWorker extends MaestroWorker {
         return domainObject;
     }
 
+    /**
+     * The compact form of {@link #processMeasures(Map, List)}: the metric keys, shared by all the projects, then the
+     * values and formatted values of the metrics in lists in the same order, null for the metrics the project has
+     * no measure of. The names and value types of the metrics are left to {@link #processMetas(Map, Collection)}.
+     *
+     * @param keys     The metric keys, in the order of the lists
+     * @param measures The measurements for a Sonar domain we want to process into the context
+     * @return The keys under keys, the values under values and the formatted values under formattedValues
+     */
+    static Map<String, Object> processMeasuresCompact(List<String> keys, List<SonarMeasure> measures) {
+        Object[] values = new Object[keys.size()];
+        Object[] formattedValues = new Object[keys.size()];
+        int next = 0;
+        for (SonarMeasure m : measures) {
+            // the measures come in the order of the keys, some missing, so this is a single walk over the keys
+            int i = next;
+            while (i < values.length && !keys.get(i).equals(m.getKey())) {
+                i++;
+            }
+            if (i == values.length) {
+                i = keys.indexOf(m.getKey());
+            }
+            if (i >= 0) {
+                values[i] = m.hasValue() ? m.getValue() : null;
+                formattedValues[i] = m.getFormattedValue();
+                next = i + 1;
+            }
+        }
+        Map<String, Object> group = new HashMap<String, Object>(8);
+        group.put("keys", keys);
+        group.put("values", Arrays.asList(values));
+        group.put("formattedValues", Arrays.asList(formattedValues));
+        return group;
+    }
+
+    /**
+     * The names and value types of metrics, put once in the compact output rather than with every measure.
+     *
+     * @param metas  The metrics metadata
+     * @param groups The metric keys of the groups put in the context
+     * @return The name and val_type of each metric known to the server, by metric key
+     */
+    static Map<String, Object> processMetas(Map<String, SonarMeasureMeta> metas, Collection<String[]> groups) {
+        Map<String, Object> metrics = new HashMap<String, Object>();
+        for (String[] keys : groups) {
+            for (String key : keys) {
+                SonarMeasureMeta meta = metas.get(key);
+                if (meta != null && !metrics.containsKey(key)) {
+                    Map<String, Object> o = new HashMap<String, Object>(4);
+                    o.put(SonarMeasureMeta.MEASURE_NAME_KEY, meta.getName());
+                    o.put(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY, meta.getValueTypeName());
+                    metrics.put(key, o);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return Whether the output field asks for the compact output rather than the default maps
+     * @throws IllegalArgumentException If the output is neither
+     */
+    private boolean isCompactOutput() {
+        String output = getField("output");
+        if (output == null || output.trim().length() == 0 || OUTPUT_MAPS.equalsIgnoreCase(output.trim())) {
+            return false;
+        }
+        if (OUTPUT_COMPACT.equalsIgnoreCase(output.trim())) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unknown output '" + output + "', use " + OUTPUT_MAPS + " or " + OUTPUT_COMPACT);
+    }
+
+    /**
+     * Defer turning a large value into a string to the moment it is logged, cutting it to
+     * <code>sonar.log.maxChars</code> characters.
+     *
+     * @param value The value to log, e.g. a context
+     * @return An object whose string is the value's, abbreviated
+     */
+    static Object capped(final Object value) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return StringUtils.abbreviate(String.valueOf(value), Math.max(4, LOG_MAX_CHARS));
+            }
+        };
+    }
+
+    /**
+     * Hand the context over to Maestro, adding the time spent in each phase under timings when the timings field is
+     * true. Publishing the context is timed too, it only shows up in {@link SonarMetrics} as it comes last.
+     *
+     * @param context The context outputs
+     * @param timings The timings of the work item
+     */
+    private void publish(Map<String, Object> context, SonarTimings timings) {
+        if (getBooleanField("timings", false)) {
+            context.put("timings", timings.toContext());
+        }
+        long start = System.nanoTime();
+        setContextOutputs(context);
+        timings.stop("setContextOutputs", start);
+    }
+
+    /**
+     * Split projects into the groups fetched together.
+     *
+     * @param projectKeys The project keys
+     * @param size        The most projects in a group
+     * @return The groups, views of projectKeys
+     */
+    static List<List<String>> partition(List<String> projectKeys, int size) {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        for (int from = 0; from < projectKeys.size(); from += Math.max(1, size)) {
+            groups.add(projectKeys.subList(from, Math.min(projectKeys.size(), from + Math.max(1, size))));
+        }
+        return groups;
+    }
+
+    /**
+     * Wait for the latest analysis of a project. The fetch goes on without it if it could not be had, only without
+     * reusing cached metrics and adding deltas.
+     *
+     * @param snapshotFuture The pending probe
+     * @param deadline       The deadline, in {@link System#nanoTime()} terms
+     * @param messageSuffix  The project and server, for the log
+     * @return The latest analysis, null if the probe failed
+     */
+    private SonarSnapshot probe(Future<SonarSnapshot> snapshotFuture, long deadline, MessageSuffix messageSuffix)
+            throws InterruptedException {
+        try {
+            return await(snapshotFuture, deadline);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not get the latest analysis" + messageSuffix + ", fetching the metrics anyway", e);
+            return null;
+        }
+    }
+
+    /**
+     * Wait for a fetch to complete until the given deadline, unwrapping the failure of the fetch if it failed.
+     *
+     * @param future   The pending fetch
+     * @param deadline The deadline, in {@link System#nanoTime()} terms
+     * @return The result of the fetch
+     * @throws Exception The fetch failure, or a TimeoutException if the deadline passed
+     */
+    private <T> T await(Future<T> future, long deadline) throws Exception {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Timed out after " + getTimeout() + " seconds waiting for Sonar");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The time allowed for fetching everything for a work item in seconds, from the optional timeout field
+     */
+    private int getTimeout() {
+        return getIntField("timeout", DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Read an optional list field of the work item, given either as a list or as a comma separated string
+     *
+     * @param name The field name
+     * @return The non blank values, trimmed, empty if the field is not set
+     */
+    private List<String> getListField(String name) {
+        List<String> list = new ArrayList<String>();
+        Object value = getFields().get(name);
+        if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                if (item != null && item.toString().trim().length() > 0) {
+                    list.add(item.toString().trim());
+                }
+            }
+        } else if (value != null) {
+            for (String item : value.toString().split("[,\\s]+")) {
+                if (item.length() > 0) {
+                    list.add(item);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Read an optional boolean field of the work item
+     *
+     * @param name         The field name
+     * @param defaultValue The value to use when the field is not set
+     * @return The field value
+     */
+    private boolean getBooleanField(String name, boolean defaultValue) {
+        Object value = getFields().get(name);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value == null || value.toString().trim().length() == 0) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * Read an optional integer field of the work item
+     *
+     * @param name         The field name
+     * @param defaultValue The value to use when the field is not set
+     * @return The field value
+     */
+    private int getIntField(String name, int defaultValue) {
+        Object value = getFields().get(name);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value == null || value.toString().trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.toString().trim());
+    }
+
     /**
      * Simple helper to get the context object, which is where we put all of our output data
      *
@@ -179,6 +1137,59 @@ public class SonarWorker extends MaestroWorker {
         return outputData;
     }
 
+    /**
+     * The measures fetch of one project of a batch. Failures are kept with the result rather than thrown, so one
+     * failing project doesn't abort the batch.
+     */
+    private static class ProjectMeasures implements Callable<ProjectMeasures> {
+        private final SonarClient client;
+        private final Map<String, String[]> metricGroups;
+        final List<String> projectKeys;
+        Map<String, Map<String, List<SonarMeasure>>> measures;
+        Exception error;
+
+        ProjectMeasures(SonarClient client, List<String> projectKeys, Map<String, String[]> metricGroups) {
+            this.client = client;
+            this.projectKeys = projectKeys;
+            this.metricGroups = metricGroups;
+        }
+
+        public ProjectMeasures call() {
+            try {
+                measures = client.getMeasures(projectKeys, metricGroups);
+            } catch (Exception e) {
+                error = e;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * The measures of some projects of an export, fetched together, or the reason they could not be fetched.
+     */
+    private static class ProjectRows implements Callable<ProjectRows> {
+        private final SonarClient client;
+        private final String[] metricKeys;
+        final List<String> projectKeys;
+        Map<String, List<SonarMeasure>> measures;
+        Exception error;
+
+        ProjectRows(SonarClient client, List<String> projectKeys, String[] metricKeys) {
+            this.client = client;
+            this.projectKeys = projectKeys;
+            this.metricKeys = metricKeys;
+        }
+
+        public ProjectRows call() {
+            try {
+                measures = client.getMeasures(projectKeys, metricKeys);
+            } catch (Exception e) {
+                error = e;
+            }
+            return this;
+        }
+    }
+
     /**
      * Process URL for correct form and fix some common issues for convenience to the end user
      *
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the N worst components for each metric while components stream by, e.g. the files with the lowest coverage
+ * or the most blocker violations. Each metric has a bounded heap whose head is the best of the worst components kept
+ * so far, so memory stays proportional to N whatever the number of components.
+ * <p/>
+ * Which end is worst comes from the metric direction: for metrics where higher is better (direction 1, e.g.
+ * coverage) the lowest values are the worst, otherwise the highest values are.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarWorstComponents implements SonarComponentHandler {
+
+    private final int limit;
+    private final Map<String, SonarMeasureMeta> metas;
+    private final Map<String, PriorityQueue<Offender>> worst = new LinkedHashMap<String, PriorityQueue<Offender>>();
+    private long components;
+
+    /**
+     * @param limit   The number of components to keep per metric
+     * @param metas   The metrics metadata, for the direction of the metrics
+     * @param metrics The keys of the metrics to rank the components by
+     */
+    public SonarWorstComponents(int limit, Map<String, SonarMeasureMeta> metas, List<String> metrics) {
+        this.limit = Math.max(1, limit);
+        this.metas = metas;
+        for (String metric : metrics) {
+            worst.put(metric, new PriorityQueue<Offender>(this.limit + 1, BEST_FIRST));
+        }
+    }
+
+    public void component(SonarComponent component) {
+        components++;
+        for (SonarMeasure measure : component.getMeasures()) {
+            PriorityQueue<Offender> heap = worst.get(measure.getKey());
+            if (heap == null || !measure.hasValue()) {
+                continue;
+            }
+
+            SonarMeasureMeta meta = metas.get(measure.getKey());
+            double badness = meta != null && meta.getDirection() > 0 ? -measure.getValue() : measure.getValue();
+            if (heap.size() < limit) {
+                heap.add(new Offender(component, measure, badness));
+            } else if (badness > heap.peek().badness) {
+                heap.poll();
+                heap.add(new Offender(component, measure, badness));
+            }
+        }
+    }
+
+    /**
+     * @return The number of components seen
+     */
+    public long getComponents() {
+        return components;
+    }
+
+    /**
+     * @return For each metric, the worst components first, each as a map of key, name, value and formattedValue
+     */
+    public Map<String, Object> toContext() {
+        Map<String, Object> context = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, PriorityQueue<Offender>> entry : worst.entrySet()) {
+            List<Offender> offenders = new ArrayList<Offender>(entry.getValue());
+            Collections.sort(offenders, Collections.reverseOrder(BEST_FIRST));
+
+            List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(offenders.size());
+            for (Offender offender : offenders) {
+                Map<String, Object> o = new HashMap<String, Object>();
+                o.put("key", offender.key);
+                o.put("name", offender.name);
+                o.put("value", offender.value);
+                o.put("formattedValue", offender.formattedValue);
+                list.add(o);
+            }
+            context.put(entry.getKey(), list);
+        }
+        return context;
+    }
+
+    private static final Comparator<Offender> BEST_FIRST = new Comparator<Offender>() {
+        public int compare(Offender a, Offender b) {
+            return Double.compare(a.badness, b.badness);
+        }
+    };
+
+    /**
+     * What is kept of a component: only the one measure it is ranked by, not the whole component.
+     */
+    private static class Offender {
+        final String key;
+        final String name;
+        final double value;
+        final String formattedValue;
+        final double badness;
+
+        Offender(SonarComponent component, SonarMeasure measure, double badness) {
+            this.key = component.getKey();
+            this.name = component.getName();
+            this.value = measure.getValue();
+            this.formattedValue = measure.getFormattedValue();
+            this.badness = badness;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link SonarTransport} on top of the JDK's {@link HttpURLConnection}, which honors the standard
+ * <code>http.proxyHost</code>/<code>http.proxyPort</code> system properties. Responses are compressed unless
+ * disabled, see {@link SonarCompression}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class UrlConnectionTransport implements SonarTransport {
+
+    private final String authorization;
+
+    /**
+     * @param authorization The value of the Authorization header sent with every request, or null
+     */
+    public UrlConnectionTransport(String authorization) {
+        this.authorization = authorization;
+    }
+
+    public InputStream get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Accept", "application/json");
+        if (SonarCompression.isEnabled()) {
+            connection.setRequestProperty("Accept-Encoding", SonarCompression.ACCEPT_ENCODING);
+        }
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+
+        int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            connection.disconnect();
+            throw new SonarHttpException(status, "Sonar answered " + status + " " + connection.getResponseMessage() + " for " + url);
+        }
+        return SonarCompression.decode(connection.getInputStream(), connection.getContentEncoding());
+    }
+}
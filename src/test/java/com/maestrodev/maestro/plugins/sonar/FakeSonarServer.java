@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a Sonar 3.x server, serving the legacy web services from the test fixtures over real HTTP
+ * on a free local port, so the whole I/O path of the plugin (connection pool, limiter, streaming parsers) can be
+ * exercised without a Sonar server.
+ * <p/>
+ * The latency of the responses, the share of requests failing and the size of the metrics catalogue can be set while
+ * the server runs. Successful responses are gzipped for the clients accepting it. The server counts the requests it
+ * served, the bytes it sent and the connections they came on.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class FakeSonarServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile int extraMetrics;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Set<InetSocketAddress> connections = Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+    private final ConcurrentMap<Integer, byte[]> metricsPayloads = new ConcurrentHashMap<Integer, byte[]>();
+
+    public FakeSonarServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // one thread per request in flight, so the latency of a response never delays the others
+        executor = SonarExecutors.newDaemonPool("fake-sonar", 256);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public FakeSonarServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The base URL of the server, e.g. http://127.0.0.1:54321
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param latencyMillis The time taken by every response, in milliseconds
+     * @param jitterMillis  A random extra time, up to this many milliseconds
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param errorRate   The share of requests failing, between 0 and 1
+     * @param errorStatus The status of the failed requests
+     */
+    public void setErrors(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * @param extraMetrics The number of generated metrics added to the catalogue, to grow the payloads
+     */
+    public void setExtraMetrics(int extraMetrics) {
+        this.extraMetrics = extraMetrics;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return The number of connections the requests came on
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    public void reset() {
+        requests.set(0);
+        errors.set(0);
+        bytesSent.set(0);
+        connections.clear();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        connections.add(exchange.getRemoteAddress());
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery() != null ? exchange.getRequestURI().getRawQuery() : "";
+
+        long latency = latencyMillis + (latencyJitterMillis > 0 ? (long) (random.nextDouble() * latencyJitterMillis) : 0);
+        if (latency > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            send(exchange, errorStatus, ("{\"err_code\":" + errorStatus + ",\"err_msg\":\"Injected failure\"}").getBytes("UTF-8"));
+            return;
+        }
+
+        if ("/api/server/version".equals(path)) {
+            send(exchange, 200, "3.7".getBytes("UTF-8"));
+        } else if ("/api/metrics".equals(path)) {
+            send(exchange, 200, metricsPayload(extraMetrics));
+        } else if ("/api/resources".equals(path)) {
+            // measures and project lists come with all the fields, a single resource without measures for snapshots
+            send(exchange, 200, fixture(query.contains("metrics=") || query.contains("qualifiers=") ? "/resources.json" : "/resource.json"));
+        } else if ("/api/timemachine".equals(path)) {
+            send(exchange, 200, fixture("/timemachine.json"));
+        } else {
+            send(exchange, 404, "{\"err_code\":404,\"err_msg\":\"Unknown web service\"}".getBytes("UTF-8"));
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (status == 200 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+            gzip.write(body);
+            gzip.close();
+            body = gzipped.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+        bytesSent.addAndGet(body.length);
+    }
+
+    private byte[] metricsPayload(int extra) throws IOException {
+        byte[] payload = metricsPayloads.get(extra);
+        if (payload == null) {
+            String metrics = new String(fixture("/metrics.json"), "UTF-8").trim();
+            StringBuilder json = new StringBuilder(metrics.length() + extra * 200);
+            json.append(metrics, 0, metrics.lastIndexOf(']'));
+            for (int i = 0; i < extra; i++) {
+                json.append(",{\"key\":\"generated_").append(i).append("\",\"name\":\"Generated ").append(i)
+                        .append("\",\"description\":\"Generated metric\",\"domain\":\"Generated\",\"qualitative\":false,")
+                        .append("\"user_managed\":false,\"direction\":-1,\"val_type\":\"INT\",\"hidden\":false}");
+            }
+            json.append(']');
+            payload = json.toString().getBytes("UTF-8");
+            metricsPayloads.putIfAbsent(extra, payload);
+        }
+        return payload;
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        InputStream in = FakeSonarServer.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarCompressionTest {
+
+    private final byte[] body;
+
+    public SonarCompressionTest() throws IOException {
+        body = read(getClass().getResourceAsStream("/metrics.json"));
+    }
+
+    @Test
+    public void shouldDecodeGzip() throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        compress(new GZIPOutputStream(gzipped));
+
+        assertDecoded(gzipped.toByteArray(), "gzip");
+        assertDecoded(gzipped.toByteArray(), "X-GZIP");
+    }
+
+    @Test
+    public void shouldDecodeZlibAndRawDeflate() throws IOException {
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        compress(new DeflaterOutputStream(zlib, new Deflater(Deflater.DEFAULT_COMPRESSION, false)));
+        assertDecoded(zlib.toByteArray(), "deflate");
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        compress(new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true)));
+        assertDecoded(raw.toByteArray(), "deflate");
+    }
+
+    @Test
+    public void shouldPassIdentityThrough() throws IOException {
+        assertDecoded(body, null);
+        assertDecoded(body, "identity");
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectUnknownEncoding() throws IOException {
+        SonarCompression.decode(new ByteArrayInputStream(body), "br");
+    }
+
+    @Test
+    public void shouldCloseBodyOnBadHeader() throws IOException {
+        final boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+        try {
+            SonarCompression.decode(in, "gzip");
+            fail("not gzipped");
+        } catch (IOException e) {
+            assertTrue(closed[0]);
+        }
+    }
+
+    private void compress(OutputStream out) throws IOException {
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private void assertDecoded(byte[] encoded, String contentEncoding) throws IOException {
+        SonarCompression.Decoded in = SonarCompression.decode(new ByteArrayInputStream(encoded), contentEncoding);
+        try {
+            assertArrayEquals(body, read(in));
+            assertEquals(encoded.length, in.getWireBytes());
+            if (contentEncoding != null && !"identity".equals(contentEncoding)) {
+                assertTrue(in.getWireBytes() < body.length);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends requests through a {@link SonarConnectionPool} to a {@link FakeSonarServer}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarConnectionPoolTest {
+
+    private FakeSonarServer server;
+    private SonarConnectionPool pool;
+    private SonarTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSonarServer().start();
+        pool = new SonarConnectionPool(SonarConnectionPool.serverOf(server.getUrl()), 4, 10000, 10000, 30000);
+        transport = new PooledHttpTransport(pool, null);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void shouldReuseConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            read(transport.get(server.getUrl() + "/api/server/version"));
+        }
+
+        assertEquals(5, server.getRequests());
+        assertEquals(1, server.getConnections());
+        assertEquals(5, pool.getRequests());
+        PoolStats stats = pool.getStats();
+        assertEquals(0, stats.getLeased());
+        assertEquals(1, stats.getAvailable());
+        assertEquals(4, stats.getMax());
+    }
+
+    @Test
+    public void shouldLeaseConnectionUntilBodyClosed() throws IOException {
+        InputStream first = transport.get(server.getUrl() + "/api/metrics");
+        InputStream second = transport.get(server.getUrl() + "/api/server/version");
+        assertEquals(2, pool.getStats().getLeased());
+        assertEquals(0, pool.getStats().getAvailable());
+
+        read(first);
+        assertEquals(1, pool.getStats().getLeased());
+        assertEquals(1, pool.getStats().getAvailable());
+
+        read(second);
+        assertEquals(0, pool.getStats().getLeased());
+        assertEquals(2, pool.getStats().getAvailable());
+        assertEquals(2, server.getConnections());
+    }
+
+    @Test
+    public void shouldIdentifyServer() {
+        assertEquals("http://sonar:80", SonarConnectionPool.serverOf("http://sonar/path"));
+        assertEquals("https://sonar:443", SonarConnectionPool.serverOf("https://sonar"));
+        assertEquals("http://sonar:9000", SonarConnectionPool.serverOf("http://sonar:9000/sonar"));
+    }
+
+    private void read(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // drained, so the connection goes back to the pool
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarEndpointTest {
+
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void shouldPreferFastestHealthyEndpoint() {
+        SonarEndpoint slow = endpoint("http://slow:9000");
+        SonarEndpoint fast = endpoint("http://fast:9000");
+        SonarEndpoint down = endpoint("http://down:9000");
+        SonarEndpoint unknown = endpoint("http://unknown:9000");
+        slow.success(LATENCY * 5);
+        fast.success(LATENCY);
+        down.success(1);
+        down.failure(new ConnectException("Connection refused"));
+
+        assertEquals(Arrays.asList(unknown, fast, slow, down), SonarEndpoint.byPreference(Arrays.asList(slow, down, fast, unknown)));
+    }
+
+    @Test
+    public void shouldTakeOverloadedEndpointOutOfRotation() {
+        SonarEndpoint endpoint = endpoint("http://localhost:9000");
+        endpoint.failure(new SonarHttpException(404, "Not Found"));
+        assertTrue("a rejected request says nothing of the endpoint", endpoint.isHealthy());
+
+        endpoint.failure(new SonarHttpException(503, "Service Unavailable"));
+        assertFalse(endpoint.isHealthy());
+
+        endpoint.success(LATENCY);
+        assertTrue(endpoint.isHealthy());
+    }
+
+    @Test
+    public void shouldComputeLatencyPercentiles() {
+        SonarEndpoint endpoint = endpoint("http://localhost:9000");
+        assertEquals(0, endpoint.getLatencyPercentileNanos(95));
+
+        for (int i = 1; i <= 100; i++) {
+            endpoint.success(i);
+        }
+        // only the last 64 are kept
+        assertEquals(64, endpoint.getLatencySamples());
+        assertEquals(68, endpoint.getLatencyPercentileNanos(50));
+        assertEquals(97, endpoint.getLatencyPercentileNanos(95));
+        assertEquals(100, endpoint.getLatencyPercentileNanos(100));
+    }
+
+    @Test
+    public void shouldFailOverToNextEndpoint() throws Exception {
+        final List<String> requested = new ArrayList<String>();
+        SonarClient client = new SonarClient(Arrays.asList("http://primary.failover:9000/", "http://replica.failover:9000"), null, null);
+        client.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                if (url.startsWith("http://primary.failover:9000")) {
+                    throw new SonarHttpException(503, "Service Unavailable");
+                }
+                return getClass().getResourceAsStream("/resources.json");
+            }
+        };
+
+        assertFalse(client.getProjectKeys().isEmpty());
+        assertEquals(Arrays.asList("http://primary.failover:9000/api/resources?qualifiers=TRK",
+                "http://replica.failover:9000/api/resources?qualifiers=TRK"), requested);
+
+        // the primary is skipped until it is back
+        requested.clear();
+        client.getProjectKeys();
+        assertEquals(Arrays.asList("http://replica.failover:9000/api/resources?qualifiers=TRK"), requested);
+    }
+
+    @Test
+    public void shouldNotFailOverRejectedRequest() {
+        final List<String> requested = new ArrayList<String>();
+        SonarClient client = new SonarClient(Arrays.asList("http://primary.rejected:9000", "http://replica.rejected:9000"), null, null);
+        client.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                throw new SonarHttpException(401, "Unauthorized");
+            }
+        };
+
+        try {
+            client.getProjectKeys();
+            fail("the request should have been rejected");
+        } catch (Exception e) {
+            assertEquals(401, ((SonarHttpException) e.getCause()).getStatus());
+        }
+        assertEquals(1, requested.size());
+    }
+
+    private SonarEndpoint endpoint(String baseUrl) {
+        return new SonarEndpoint(baseUrl, new SonarServerLimiter(baseUrl, 20, 0, 0, 1000));
+    }
+}
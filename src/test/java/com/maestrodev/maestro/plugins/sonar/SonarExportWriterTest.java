@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarExportWriterTest {
+
+    private static final String[] METRICS = new String[]{"coverage", "violations", "alert_status"};
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sonar-export", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldWriteNdjson() throws IOException {
+        File file = new File(directory, "export.ndjson");
+        SonarExportWriter writer = new SonarExportWriter(file, SonarExportWriter.Format.NDJSON, false, METRICS);
+        writer.write("org.codehaus.sonar:sonar", measures());
+        writer.write("my \"project\"", new ArrayList<SonarMeasure>());
+        writer.commit();
+
+        assertEquals(Arrays.asList(
+                "{\"projectKey\":\"org.codehaus.sonar:sonar\",\"coverage\":80.5,\"violations\":1200,\"alert_status\":\"OK\"}",
+                "{\"projectKey\":\"my \\\"project\\\"\"}"), readLines(new FileInputStream(file)));
+        assertEquals(2, writer.getRows());
+    }
+
+    @Test
+    public void shouldWriteGzippedCsv() throws IOException {
+        File file = new File(directory, "export.csv.gz");
+        assertEquals(SonarExportWriter.Format.CSV, SonarExportWriter.Format.of(null, file.getName()));
+
+        SonarExportWriter writer = new SonarExportWriter(file, SonarExportWriter.Format.CSV, true, METRICS);
+        writer.write("org.codehaus.sonar:sonar", measures());
+        writer.write("a,b", Arrays.asList(new SonarMeasure("violations", 3, "3")));
+        writer.commit();
+
+        assertEquals(Arrays.asList(
+                "projectKey,coverage,violations,alert_status",
+                "org.codehaus.sonar:sonar,80.5,1200,OK",
+                "\"a,b\",,3,"), readLines(new GZIPInputStream(new FileInputStream(file))));
+    }
+
+    @Test
+    public void shouldLeaveFileUntouchedUnlessCommitted() throws IOException {
+        File file = new File(directory, "export.ndjson");
+        SonarExportWriter first = new SonarExportWriter(file, SonarExportWriter.Format.NDJSON, false, METRICS);
+        first.write("first", measures());
+        first.commit();
+
+        SonarExportWriter second = new SonarExportWriter(file, SonarExportWriter.Format.NDJSON, false, METRICS);
+        second.write("second", measures());
+        second.close();
+
+        assertTrue(readLines(new FileInputStream(file)).get(0).startsWith("{\"projectKey\":\"first\""));
+        assertEquals(1, directory.listFiles().length);
+        assertFalse(new File(directory, "export.ndjson.tmp").exists());
+    }
+
+    @Test
+    public void shouldReplaceFileOnCommit() throws IOException {
+        File file = new File(directory, "export.ndjson");
+        SonarExportWriter first = new SonarExportWriter(file, SonarExportWriter.Format.NDJSON, false, METRICS);
+        first.write("first", measures());
+        first.commit();
+
+        SonarExportWriter second = new SonarExportWriter(file, SonarExportWriter.Format.NDJSON, false, METRICS);
+        second.write("second", measures());
+        second.commit();
+
+        assertTrue(readLines(new FileInputStream(file)).get(0).startsWith("{\"projectKey\":\"second\""));
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    private List<SonarMeasure> measures() {
+        return Arrays.asList(
+                new SonarMeasure("coverage", 80.5, "80.5%"),
+                new SonarMeasure("violations", 1200, "1,200"),
+                new SonarMeasure("ncloc", 50000, "50,000"),
+                new SonarMeasure("alert_status", Double.NaN, "OK"));
+    }
+
+    private List<String> readLines(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
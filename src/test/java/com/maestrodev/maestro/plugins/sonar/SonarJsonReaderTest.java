@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarJsonReaderTest {
+
+    @Test
+    public void shouldReadValues() throws IOException {
+        SonarJsonReader reader = reader("{\"s\": \"a\\\"b\\u00e9\\n\", \"n\": -1.5e2, \"t\": true, \"f\": false, \"z\": null}");
+        reader.beginObject();
+        assertEquals("s", reader.nextName());
+        assertEquals("a\"b\u00e9\n", reader.nextString());
+        assertEquals("n", reader.nextName());
+        assertEquals(-150.0, reader.nextDouble(), 0);
+        assertEquals("t", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("f", reader.nextName());
+        assertFalse(reader.nextBoolean());
+        assertEquals("z", reader.nextName());
+        assertEquals(SonarJsonReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(SonarJsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void shouldSkipNestedValues() throws IOException {
+        SonarJsonReader reader = reader("[{\"skip\": {\"a\": [1, {\"b\": [[]]}], \"c\": \"]}\"}, \"keep\": 42}, []]");
+        reader.beginArray();
+        reader.beginObject();
+        assertEquals("skip", reader.nextName());
+        reader.skipValue();
+        assertEquals("keep", reader.nextName());
+        assertEquals(42, reader.nextInt());
+        reader.endObject();
+        reader.skipValue();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnMalformedJson() throws IOException {
+        SonarJsonReader reader = reader("[{\"a\" 1}]");
+        reader.beginArray();
+        reader.beginObject();
+        reader.nextName();
+        reader.nextInt();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnTruncatedJson() throws IOException {
+        SonarJsonReader reader = reader("[{\"a\": 1}");
+        reader.beginArray();
+        reader.skipValue();
+        reader.hasNext();
+    }
+
+    @Test
+    public void shouldParseMeasureMeta() throws IOException {
+        Map<String, SonarMeasureMeta> metas = SonarClient.parseMeasureMeta(getClass().getResourceAsStream("/metrics.json"));
+        SonarMeasureMeta coverage = metas.get("coverage");
+        assertEquals("coverage", coverage.getKey());
+        assertEquals("Coverage", coverage.getName());
+        assertEquals(SonarValueType.PERCENT, coverage.getValueType());
+        assertEquals("PERCENT", coverage.getValueTypeName());
+    }
+
+    @Test
+    public void shouldKeepUnknownValueType() throws IOException {
+        Map<String, SonarMeasureMeta> metas = SonarClient.parseMeasureMeta(new ByteArrayInputStream(
+                "[{\"key\": \"security_review\", \"name\": \"Security Review\", \"val_type\": \"NEW_TYPE\"}]".getBytes("UTF-8")));
+        SonarMeasureMeta meta = metas.get("security_review");
+        assertEquals(SonarValueType.DATA, meta.getValueType());
+        assertEquals("NEW_TYPE", meta.getValueTypeName());
+
+        // the context tells the type the server sent
+        Map<String, Object> context = SonarWorker.processMeasures(metas,
+                Arrays.asList(new SonarMeasure("security_review", Double.NaN, "pending")));
+        assertEquals("NEW_TYPE", ((Map<?, ?>) context.get("security_review")).get(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY));
+    }
+
+    @Test
+    public void shouldParseMeasures() throws IOException {
+        List<SonarMeasure> measures = SonarClient.parseMeasures(getClass().getResourceAsStream("/resources.json"));
+        assertEquals(15, measures.size());
+        assertEquals("test_errors", measures.get(0).getKey());
+        assertTrue(measures.get(0).hasValue());
+        assertEquals(0.0, measures.get(0).getValue(), 0);
+        assertEquals("0", measures.get(0).getFormattedValue());
+    }
+
+    private SonarJsonReader reader(String json) {
+        return new SonarJsonReader(new StringReader(json));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.fusesource.stomp.client.BlockingConnection;
+import org.mockito.Matchers;
+
+import com.maestrodev.maestro.plugins.StompConnectionFactory;
+
+/**
+ * End-to-end load test of {@link SonarWorker}: runs many {@link SonarWorker#fetchMetricsForProject()} at once against
+ * a Sonar server over HTTP, usually a {@link FakeSonarServer}, and reports the throughput, the latency percentiles,
+ * the connections opened to the server and the growth of the heap.
+ * <p/>
+ * Run from the command line with the <code>load.*</code> system properties, see {@link #main(String[])}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarLoadHarness {
+
+    private final String url;
+    private int fetches = 1000;
+    private int concurrency = 16;
+    private int projects = 100;
+    private boolean cache = false;
+
+    public SonarLoadHarness(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @param fetches The number of fetches to run
+     */
+    public SonarLoadHarness fetches(int fetches) {
+        this.fetches = fetches;
+        return this;
+    }
+
+    /**
+     * @param concurrency The number of fetches running at once
+     */
+    public SonarLoadHarness concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param projects The number of distinct project keys the fetches cycle through
+     */
+    public SonarLoadHarness projects(int projects) {
+        this.projects = projects;
+        return this;
+    }
+
+    /**
+     * @param cache Whether the fetches reuse the metrics of unchanged snapshots
+     */
+    public SonarLoadHarness cache(boolean cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Run the fetches, after a short warm-up run that is not measured.
+     *
+     * @param server The fake server, to count the connections, or null when running against another server
+     * @return The report of the run
+     * @throws Exception If a fetch could not be run at all; fetches completing with an error are counted as failed
+     */
+    public Report run(FakeSonarServer server) throws Exception {
+        ExecutorService executor = SonarExecutors.newDaemonPool("sonar-load", concurrency);
+        try {
+            execute(executor, Math.min(fetches, concurrency * 2));
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            if (server != null) {
+                server.reset();
+            }
+
+            long start = System.nanoTime();
+            long[] latencies = execute(executor, fetches);
+            long elapsed = System.nanoTime() - start;
+
+            System.gc();
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+            Report report = new Report();
+            report.fetches = fetches;
+            report.concurrency = concurrency;
+            report.elapsedMillis = elapsed / 1000000;
+            // failed fetches have a negative latency, they count with their actual time in the percentiles
+            for (int i = 0; i < latencies.length; i++) {
+                if (latencies[i] < 0) {
+                    report.failed++;
+                    latencies[i] = -latencies[i];
+                }
+            }
+            Arrays.sort(latencies);
+            report.succeeded = fetches - report.failed;
+            report.fetchesPerSecond = elapsed > 0 ? fetches * 1e9 / elapsed : 0;
+            report.p50Millis = percentile(latencies, 50) / 1e6;
+            report.p99Millis = percentile(latencies, 99) / 1e6;
+            report.requests = server != null ? server.getRequests() : -1;
+            report.connections = server != null ? server.getConnections() : -1;
+            report.heapGrowthBytes = heapAfter - heapBefore;
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The latency of each fetch in nanoseconds, negative for the failed ones
+     */
+    private long[] execute(ExecutorService executor, int count) throws Exception {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(count);
+        for (int i = 0; i < count; i++) {
+            final String projectKey = "project-" + (i % projects);
+            futures.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    SonarWorker worker = newWorker(url, projectKey, cache);
+                    long start = System.nanoTime();
+                    worker.fetchMetricsForProject();
+                    long latency = System.nanoTime() - start;
+                    return worker.getError() == null ? latency : -latency;
+                }
+            }));
+        }
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = futures.get(i).get();
+        }
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * A worker fetching a project from a server, with a mocked stomp connection as in the unit tests.
+     *
+     * @param url        The base URL of the server
+     * @param projectKey The project to fetch
+     * @param cache      Whether to reuse the metrics of unchanged snapshots
+     * @return The worker, ready to run
+     * @throws Exception If the mocked stomp connection could not be set up
+     */
+    static SonarWorker newWorker(String url, String projectKey, boolean cache) throws Exception {
+        HashMap<String, Object> stompConfig = new HashMap<String, Object>();
+        stompConfig.put("host", "localhost");
+        stompConfig.put("port", "61613");
+        stompConfig.put("queue", "test");
+
+        StompConnectionFactory stompConnectionFactory = mock(StompConnectionFactory.class);
+        BlockingConnection blockingConnection = mock(BlockingConnection.class);
+        when(stompConnectionFactory.getConnection(Matchers.anyString(), Matchers.anyInt())).thenReturn(blockingConnection);
+
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("url", url);
+        fields.put("username", null);
+        fields.put("password", null);
+        fields.put("projectKey", projectKey);
+        fields.put("cache", cache);
+
+        Map<String, Object> workitem = new HashMap<String, Object>();
+        workitem.put("fields", fields);
+
+        SonarWorker worker = new SonarWorker();
+        worker.setStompConnectionFactory(stompConnectionFactory);
+        worker.setStompConfig(stompConfig);
+        worker.setWorkitem(workitem);
+        return worker;
+    }
+
+    /**
+     * The outcome of a load run
+     */
+    public static class Report {
+        int fetches;
+        int concurrency;
+        int succeeded;
+        int failed;
+        long elapsedMillis;
+        double fetchesPerSecond;
+        double p50Millis;
+        double p99Millis;
+        long requests;
+        int connections;
+        long heapGrowthBytes;
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                "fetches=" + fetches +
+                ", concurrency=" + concurrency +
+                ", succeeded=" + succeeded +
+                ", failed=" + failed +
+                ", elapsedMillis=" + elapsedMillis +
+                ", fetchesPerSecond=" + String.format("%.1f", fetchesPerSecond) +
+                ", p50Millis=" + String.format("%.2f", p50Millis) +
+                ", p99Millis=" + String.format("%.2f", p99Millis) +
+                ", requests=" + requests +
+                ", connections=" + connections +
+                ", heapGrowthBytes=" + heapGrowthBytes +
+                '}';
+        }
+    }
+
+    /**
+     * Run a load test and print its report. Unless <code>load.url</code> is given, a {@link FakeSonarServer} is
+     * started, with <code>load.latency</code> and <code>load.jitter</code> milliseconds of latency,
+     * <code>load.errorRate</code> of the requests failing with <code>load.errorStatus</code> and
+     * <code>load.extraMetrics</code> generated metrics. The run is shaped by <code>load.fetches</code>,
+     * <code>load.concurrency</code>, <code>load.projects</code> and <code>load.cache</code>.
+     */
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("load.url");
+        FakeSonarServer server = null;
+        if (url == null) {
+            server = new FakeSonarServer();
+            server.setLatency(Long.getLong("load.latency", 5), Long.getLong("load.jitter", 5));
+            server.setErrors(Double.parseDouble(System.getProperty("load.errorRate", "0")), Integer.getInteger("load.errorStatus", 503));
+            server.setExtraMetrics(Integer.getInteger("load.extraMetrics", 0));
+            url = server.start().getUrl();
+        }
+        try {
+            Report report = new SonarLoadHarness(url)
+                    .fetches(Integer.getInteger("load.fetches", 1000))
+                    .concurrency(Integer.getInteger("load.concurrency", 16))
+                    .projects(Integer.getInteger("load.projects", 100))
+                    .cache(Boolean.getBoolean("load.cache"))
+                    .run(server);
+            System.out.println(report);
+            for (String phase : SonarMetrics.getInstance().getPhaseSummaries()) {
+                System.out.println(phase);
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMeasuresClientTest {
+
+    private static final String URL = "http://sonarqube:9000";
+
+    // fixtures by URL prefix
+    private final Map<String, String> responses = new LinkedHashMap<String, String>();
+    private final List<String> requested = new ArrayList<String>();
+    private SonarClient legacy;
+    private SonarMeasuresClient client;
+
+    @Before
+    public void setUp() {
+        legacy = new SonarClient(URL, "admin", "admin");
+        legacy.metaCache = new SonarMetaCache(SonarMetaCache.DEFAULT_TTL_MILLIS, SonarMetaCache.DEFAULT_MAX_ENTRIES);
+        legacy.singleFlight = new SonarSingleFlight(0);
+        legacy.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                for (Map.Entry<String, String> response : responses.entrySet()) {
+                    if (url.startsWith(URL + response.getKey())) {
+                        return response.getValue().startsWith("/")
+                                ? getClass().getResourceAsStream(response.getValue())
+                                : new ByteArrayInputStream(response.getValue().getBytes("UTF-8"));
+                    }
+                }
+                throw new SonarHttpException(404, "Not Found");
+            }
+        };
+        client = new SonarMeasuresClient(legacy);
+    }
+
+    @Test
+    public void shouldCompareVersions() {
+        assertTrue(SonarClient.isVersionAtLeast("6.3", "6.3"));
+        assertTrue(SonarClient.isVersionAtLeast("7.9.1.27448", "6.3"));
+        assertTrue(SonarClient.isVersionAtLeast("10.0", "6.3"));
+        assertFalse(SonarClient.isVersionAtLeast("6.2.1", "6.3"));
+        assertFalse(SonarClient.isVersionAtLeast("3.7.4-SNAPSHOT", "6.3"));
+    }
+
+    @Test
+    public void shouldPickApiFromServerVersion() {
+        responses.put("/api/server/version", "7.9.1.27448\n");
+        assertTrue(legacy.withApi("auto") instanceof SonarMeasuresClient);
+
+        assertSame(legacy, legacy.withApi("legacy"));
+        assertTrue(legacy.withApi("measures") instanceof SonarMeasuresClient);
+    }
+
+    @Test
+    public void shouldFallBackToLegacyServerVersion() throws Exception {
+        responses.put("/api/server", "/server.json");
+        SonarClient old = new SonarClient("http://sonar3:9000");
+        old.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                if (url.endsWith("/api/server/version")) {
+                    throw new SonarHttpException(404, "Not Found");
+                }
+                return getClass().getResourceAsStream("/server.json");
+            }
+        };
+
+        assertSame(old, old.withApi(null));
+        assertEquals(Arrays.asList("http://sonar3:9000/api/server/version", "http://sonar3:9000/api/server"), requested);
+    }
+
+    @Test
+    public void shouldRememberFailedDetection() {
+        SonarClient down = new SonarClient("http://sonar-down:9000");
+        down.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                throw new SonarHttpException(503, "Service Unavailable");
+            }
+        };
+
+        assertSame(down, down.withApi("auto"));
+        assertEquals(1, requested.size());
+
+        // the next tasks don't ask again for a while
+        assertSame(down, down.withApi("auto"));
+        assertEquals(1, requested.size());
+    }
+
+    @Test
+    public void shouldPageThroughMetrics() throws Exception {
+        responses.put("/api/metrics/search?ps=500&p=1", "/measures/metrics-search-1.json");
+        responses.put("/api/metrics/search?ps=500&p=2", "/measures/metrics-search-2.json");
+
+        SonarMetricCatalogue catalogue = client.getMetricCatalogue("org.apache.commons:commons-lang3");
+
+        assertEquals(3, catalogue.getMetas().size());
+        assertEquals(SonarValueType.PERCENT, catalogue.getMetas().get("coverage").getValueType());
+        assertEquals(-1, catalogue.getMetas().get("violations").getDirection());
+        assertEquals(2, requested.size());
+    }
+
+    @Test
+    public void shouldSearchMeasuresOfSeveralProjects() throws Exception {
+        responses.put("/api/measures/search?projectKeys=org.apache.commons:commons-lang3,org.apache.commons:commons-io,unknown&",
+                "/measures/search.json");
+
+        Map<String, List<SonarMeasure>> measures = client.getMeasures(
+                Arrays.asList("org.apache.commons:commons-lang3", "org.apache.commons:commons-io", "unknown"),
+                "coverage", "violations", "new_violations", "alert_status");
+
+        assertEquals(1, requested.size());
+        List<SonarMeasure> lang = measures.get("org.apache.commons:commons-lang3");
+        assertEquals(3, lang.size());
+        assertEquals(80.5, lang.get(0).getValue(), 0);
+        assertEquals(2, lang.get(2).getValue(), 0);
+        List<SonarMeasure> io = measures.get("org.apache.commons:commons-io");
+        assertFalse(io.get(1).hasValue());
+        assertEquals("OK", io.get(1).getFormattedValue());
+        assertTrue(measures.get("unknown").isEmpty());
+    }
+
+    @Test
+    public void shouldStreamComponentTree() throws Exception {
+        responses.put("/api/measures/component_tree?component=org.apache.commons:commons-lang3&strategy=all&metricKeys=coverage&qualifiers=FIL&",
+                "/measures/component-tree.json");
+
+        final List<SonarComponent> components = new ArrayList<SonarComponent>();
+        long count = client.getComponents("org.apache.commons:commons-lang3", -1, "CLA,FIL", new SonarComponentHandler() {
+            public void component(SonarComponent component) {
+                components.add(component);
+            }
+        }, "coverage");
+
+        assertEquals(2, count);
+        assertEquals("StringUtils.java", components.get(0).getName());
+        assertEquals(91.4, components.get(1).getMeasures().get(0).getValue(), 0);
+        assertEquals(1, requested.size());
+    }
+
+    @Test
+    public void shouldGetSnapshotAndMeasuresOfComponent() throws Exception {
+        responses.put("/api/components/show?component=", "/measures/component.json");
+        responses.put("/api/measures/component?component=", "/measures/component.json");
+
+        SonarSnapshot snapshot = client.getSnapshot("org.apache.commons:commons-lang3");
+        assertEquals("2017-03-01T11:39:03+0100", snapshot.getDate());
+        assertEquals("3.6-SNAPSHOT", snapshot.getVersion());
+
+        List<SonarMeasure> measures = client.getMeasures("org.apache.commons:commons-lang3", "coverage");
+        assertEquals(1, measures.size());
+        assertEquals(80.5, measures.get(0).getValue(), 0);
+    }
+
+    @Test
+    public void shouldTurnHistoryIntoPoints() throws Exception {
+        responses.put("/api/measures/search_history?component=org.apache.commons:commons-lang3&metrics=coverage,violations&from=2017-01-01&",
+                "/measures/search-history.json");
+
+        SonarTimeSeries history = client.getHistory("org.apache.commons:commons-lang3", "2017-01-01", null, "coverage", "violations");
+
+        assertEquals(Arrays.asList("coverage", "violations"), history.getMetrics());
+        assertEquals(3, history.size());
+        assertEquals("2017-01-01T10:00:00+0100", history.getDate(0));
+        assertEquals(75.5, history.getValue("coverage", 1), 0);
+        assertTrue(Double.isNaN(history.getValue("violations", 1)));
+        assertEquals(12, history.getValue("violations", 2), 0);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMetaCacheTest {
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        SonarMetaCache cache = new SonarMetaCache(60000, 4);
+        String key = SonarMetaCache.key("http://localhost:9000", "admin", "admin");
+
+        assertNull(cache.get(key));
+        cache.put(key, catalogue());
+        assertNotNull(cache.get(key));
+        assertNotNull(cache.get(key));
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void shouldKeyByServerAndCredentials() {
+        assertFalse(SonarMetaCache.key("http://a:9000", "admin", "admin").equals(SonarMetaCache.key("http://b:9000", "admin", "admin")));
+
+        SonarMetaCache cache = new SonarMetaCache(60000, 4);
+        cache.put(SonarMetaCache.key("http://a:9000", "admin", "admin"), catalogue());
+        assertNull(cache.get(SonarMetaCache.key("http://a:9000", "admin", "other")));
+        assertNull(cache.get(SonarMetaCache.key("http://a:9000", null, null)));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        SonarMetaCache cache = new SonarMetaCache(60000, 2);
+        cache.put("a", catalogue());
+        cache.put("b", catalogue());
+        cache.get("a");
+        cache.put("c", catalogue());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void shouldExpireAfterTtl() throws InterruptedException {
+        SonarMetaCache cache = new SonarMetaCache(20, 2);
+        cache.put("a", catalogue());
+        Thread.sleep(50);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldNotCacheWhenDisabled() {
+        SonarMetaCache cache = new SonarMetaCache(0, 2);
+        assertNotNull(cache.put("a", catalogue()));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void shouldInvalidate() {
+        SonarMetaCache cache = new SonarMetaCache(60000, 4);
+        cache.put("a", catalogue());
+        cache.put("b", catalogue());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    private Map<String, SonarMeasureMeta> catalogue() {
+        Map<String, SonarMeasureMeta> metas = new HashMap<String, SonarMeasureMeta>();
+        metas.put("coverage", new SonarMeasureMeta("coverage", "Coverage", SonarValueType.PERCENT));
+        return metas;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMetricCatalogueTest {
+
+    private SonarMetricCatalogue catalogue;
+
+    @Before
+    public void setUp() throws Exception {
+        catalogue = new SonarMetricCatalogue(SonarClient.parseMeasureMeta(getClass().getResourceAsStream("/metrics.json")));
+    }
+
+    @Test
+    public void shouldIndexByDomain() {
+        assertTrue(catalogue.getDomains().contains("Complexity"));
+        assertTrue(catalogue.getDomains().contains(SonarMetricCatalogue.OTHER_DOMAIN));
+        assertEquals(9, catalogue.getDomain("complexity").size());
+        assertEquals("Complexity", catalogue.getMetas().get("complexity").getDomain());
+        assertEquals(3, catalogue.getDomain(SonarMetricCatalogue.OTHER_DOMAIN).size());
+        assertTrue(catalogue.getDomain("unknown").isEmpty());
+    }
+
+    @Test
+    public void shouldSelectByDomain() {
+        Map<String, String[]> groups = catalogue.select(Arrays.asList("duplication", "COMPLEXITY"), Collections.<String>emptyList());
+
+        assertArrayEquals(new String[]{"Duplication", "Complexity"}, groups.keySet().toArray());
+        // without the bulky data and distributions
+        assertArrayEquals(new String[]{"duplicated_blocks", "duplicated_files", "duplicated_lines", "duplicated_lines_density"},
+                groups.get("Duplication"));
+        assertArrayEquals(new String[]{"class_complexity", "complexity", "complexity_in_classes", "complexity_in_functions",
+                "file_complexity", "function_complexity"}, groups.get("Complexity"));
+    }
+
+    @Test
+    public void shouldSelectByPattern() {
+        Map<String, String[]> groups = catalogue.select(Collections.<String>emptyList(),
+                Arrays.asList("new_.*_violations", "duplications_data"));
+
+        assertArrayEquals(new String[]{"Duplication", "Issues", "Reviews"}, groups.keySet().toArray());
+        assertArrayEquals(new String[]{"duplications_data"}, groups.get("Duplication"));
+        assertEquals(5, groups.get("Issues").length);
+        assertArrayEquals(new String[]{"new_unreviewed_violations"}, groups.get("Reviews"));
+    }
+
+    @Test
+    public void shouldRejectUnknownDomain() {
+        try {
+            catalogue.select(Arrays.asList("Complexity", "Nonsense"), Collections.<String>emptyList());
+            fail("an unknown domain should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown Sonar metric domain 'Nonsense'"));
+        }
+    }
+}
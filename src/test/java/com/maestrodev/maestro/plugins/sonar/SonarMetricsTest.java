@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarMetricsTest {
+
+    private SonarMetrics metrics;
+    private SonarTimings timings;
+
+    @Before
+    public void setUp() {
+        metrics = new SonarMetrics();
+        timings = new SonarTimings(metrics);
+    }
+
+    @Test
+    public void shouldAddUpPhases() {
+        timings.record("meta.request", TimeUnit.MILLISECONDS.toNanos(30));
+        timings.record("measures.request", TimeUnit.MILLISECONDS.toNanos(20));
+        timings.record("measures.request", TimeUnit.MILLISECONDS.toNanos(25));
+
+        assertEquals(30, timings.getMillis("meta.request"));
+        assertEquals(45, timings.getMillis("measures.request"));
+        assertEquals(0, timings.getMillis("unknown"));
+        assertArrayEquals(new String[]{"meta.request", "measures.request"},
+                ((Map<?, ?>) timings.toContext().get("phases")).keySet().toArray());
+
+        assertArrayEquals(new String[]{"measures.request", "meta.request"}, metrics.getPhases());
+        assertEquals(2, metrics.getCount("measures.request"));
+        assertEquals(22.5, metrics.getMeanMillis("measures.request"), 0.001);
+        assertEquals(25, metrics.getMaxMillis("measures.request"), 0.001);
+    }
+
+    @Test
+    public void shouldTrackPercentiles() {
+        for (int i = 0; i < 99; i++) {
+            metrics.record("parse", TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        metrics.record("parse", TimeUnit.MILLISECONDS.toNanos(500));
+
+        // within a factor of two of the actual durations
+        double p50 = metrics.getPercentileMillis("parse", 50);
+        assertTrue(String.valueOf(p50), p50 >= 1 && p50 <= 2.1);
+        double p99 = metrics.getPercentileMillis("parse", 99);
+        assertTrue(String.valueOf(p99), p99 >= 1 && p99 <= 2.1);
+        assertEquals(500, metrics.getPercentileMillis("parse", 100), 0.001);
+        assertEquals(0, metrics.getPercentileMillis("unknown", 50), 0);
+        assertEquals(1, metrics.getPhaseSummaries().length);
+    }
+
+    @Test
+    public void shouldCountBytesRead() throws Exception {
+        InputStream in = timings.count(new ByteArrayInputStream(new byte[1000]));
+        byte[] buffer = new byte[300];
+        while (in.read(buffer) > 0) {
+            in.read();
+        }
+        in.close();
+
+        assertEquals(1000, timings.getBytesRead());
+        assertEquals(1000, metrics.getBytesRead());
+        assertEquals(1000L, timings.toContext().get("bytesRead"));
+    }
+
+    @Test
+    public void shouldCountCacheHits() {
+        timings.cacheHit();
+        timings.cacheHit();
+
+        assertEquals(2, timings.getCacheHits());
+        assertEquals(2, metrics.getCacheHits());
+        metrics.reset();
+        assertEquals(0, metrics.getCacheHits());
+        assertEquals(0, metrics.getPhases().length);
+    }
+}
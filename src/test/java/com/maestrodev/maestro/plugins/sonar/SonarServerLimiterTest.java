@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarServerLimiterTest {
+
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void shouldGrowLimitAdditively() throws IOException {
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        assertEquals(4, limiter.getLimit(), 0);
+
+        // one more per full limit of successful requests
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            limiter.sample("measures", LATENCY, null);
+            limiter.release();
+        }
+        assertEquals(5, limiter.getLimit(), 0.1);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void shouldBackOffOnOverload() {
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        limiter.sample("measures", LATENCY, new SonarHttpException(503, "Service Unavailable"));
+        assertEquals(3, limiter.getLimit(), 0);
+
+        // the request is wrong, the server is fine
+        SonarServerLimiter rejecting = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        rejecting.sample("measures", LATENCY, new SonarHttpException(401, "Unauthorized"));
+        assertEquals(4, rejecting.getLimit(), 0);
+
+        SonarServerLimiter timingOut = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        timingOut.sample("measures", LATENCY, new SocketTimeoutException("Read timed out"));
+        assertEquals(3, timingOut.getLimit(), 0);
+    }
+
+    @Test
+    public void shouldBackOffWhenLatencyClimbs() {
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        limiter.sample("measures", LATENCY, null);
+        double limit = limiter.getLimit();
+
+        limiter.sample("measures", LATENCY * 10, null);
+        assertEquals(limit * 0.75, limiter.getLimit(), 0.001);
+    }
+
+    @Test
+    public void shouldCompareLatencyWithinPhase() {
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 20, 0, 0, 1000);
+        limiter.sample("snapshot", LATENCY, null);
+        double limit = limiter.getLimit();
+
+        // the catalogue is heavier than the snapshot probe, not slower
+        limiter.sample("meta", LATENCY * 10, null);
+        limiter.sample("meta", LATENCY * 11, null);
+        limiter.sample("snapshot", LATENCY, null);
+        assertTrue(limiter.getLimit() > limit);
+    }
+
+    @Test
+    public void shouldTimeOutWaitingForSlot() throws IOException {
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 1, 0, 0, 50);
+        limiter.acquire();
+        try {
+            limiter.acquire();
+            fail("the limit should be reached");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out waiting to send a request"));
+        }
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+
+        limiter.release();
+        limiter.acquire();
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void shouldCapRate() throws IOException {
+        // a burst of 2 then 100 requests per second
+        SonarServerLimiter limiter = new SonarServerLimiter("http://localhost:9000", 20, 100, 2, 1000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 7; i++) {
+            limiter.acquire();
+            limiter.release();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.valueOf(elapsedMillis), elapsedMillis >= 45);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarSingleFlightTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void shouldShareRequestInFlight() throws Exception {
+        final SonarSingleFlight singleFlight = new SonarSingleFlight(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object result = new Object();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return singleFlight.execute("key", new Callable<Object>() {
+                        public Object call() throws Exception {
+                            calls.incrementAndGet();
+                            started.countDown();
+                            release.await();
+                            return result;
+                        }
+                    });
+                }
+            });
+            started.await();
+            Future<Object> follower = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return singleFlight.execute("key", countingCall(new Object()));
+                }
+            });
+            while (singleFlight.getShared() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            assertSame(result, leader.get(5, TimeUnit.SECONDS));
+            assertSame(result, follower.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(1, singleFlight.getExecuted());
+        assertEquals(1, singleFlight.getShared());
+
+        // nothing is kept without a window
+        singleFlight.execute("key", countingCall(result));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void shouldReuseResultWithinWindow() throws Exception {
+        SonarSingleFlight singleFlight = new SonarSingleFlight(TimeUnit.MINUTES.toMillis(1));
+        Object result = singleFlight.execute("key", countingCall(new Object()));
+
+        assertSame(result, singleFlight.execute("key", countingCall(new Object())));
+        assertEquals(1, calls.get());
+        assertEquals(1, singleFlight.getReused());
+
+        singleFlight.execute("other", countingCall(new Object()));
+        assertEquals(2, calls.get());
+
+        singleFlight.setWindowMillis(0);
+        singleFlight.execute("key", countingCall(new Object()));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void shouldNotReuseFailure() throws Exception {
+        SonarSingleFlight singleFlight = new SonarSingleFlight(TimeUnit.MINUTES.toMillis(1));
+        try {
+            singleFlight.execute("key", new Callable<Object>() {
+                public Object call() throws Exception {
+                    throw new IOException("Sonar is down");
+                }
+            });
+            fail("the failure should be thrown");
+        } catch (IOException e) {
+            assertEquals("Sonar is down", e.getMessage());
+        }
+
+        singleFlight.execute("key", countingCall(new Object()));
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.getReused());
+    }
+
+    private Callable<Object> countingCall(final Object result) {
+        return new Callable<Object>() {
+            public Object call() {
+                calls.incrementAndGet();
+                return result;
+            }
+        };
+    }
+}
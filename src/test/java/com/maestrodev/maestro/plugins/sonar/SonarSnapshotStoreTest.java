@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarSnapshotStoreTest {
+
+    private static final String SERVER = "http://localhost:9000";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sonar-store", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldReturnPreviousAnalysis() throws IOException {
+        SonarSnapshotStore store = new SonarSnapshotStore(directory);
+        try {
+            assertNull(store.record(SERVER, snapshot("2014-08-24T19:05:49+0200"), measures(80.5, 1200)));
+
+            SonarSnapshotStore.StoredSnapshot previous = store.record(SERVER, snapshot("2014-08-25T19:05:49+0200"), measures(78.2, 1150));
+            assertEquals("2014-08-24T19:05:49+0200", previous.getSnapshot().getDate());
+            assertEquals(80.5, previous.getValue("coverage"), 0);
+            assertEquals(1200, previous.getValue("violations"), 0);
+            assertTrue("measures without a value are not kept", Double.isNaN(previous.getValue("alert_status")));
+
+            // fetching the same analysis again compares with the one before and records nothing
+            long bytes = store.getBytes();
+            previous = store.record(SERVER, snapshot("2014-08-25T19:05:49+0200"), measures(78.2, 1150));
+            assertEquals("2014-08-24T19:05:49+0200", previous.getSnapshot().getDate());
+            assertEquals(bytes, store.getBytes());
+
+            // projects of other servers are kept apart
+            assertNull(store.record("http://other:9000", snapshot("2014-08-26T19:05:49+0200"), measures(1, 1)));
+            assertEquals(2, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void shouldReopenAndDropTruncatedRecord() throws IOException {
+        SonarSnapshotStore store = new SonarSnapshotStore(directory);
+        store.record(SERVER, snapshot("2014-08-24T19:05:49+0200"), measures(80.5, 1200));
+        store.record(SERVER, snapshot("2014-08-25T19:05:49+0200"), measures(78.2, 1150));
+        long bytes = store.getBytes();
+        store.close();
+
+        // a crash in the middle of the next record
+        RandomAccessFile file = new RandomAccessFile(new File(directory, SonarSnapshotStore.FILE_NAME), "rw");
+        file.seek(bytes);
+        file.writeInt(1000);
+        file.writeLong(-1);
+        file.close();
+
+        store = new SonarSnapshotStore(directory);
+        try {
+            assertEquals(bytes, store.getBytes());
+            SonarSnapshotStore.StoredSnapshot latest = store.getLatest(SERVER, "org.codehaus.sonar:sonar");
+            assertEquals("2014-08-25T19:05:49+0200", latest.getSnapshot().getDate());
+            assertEquals(78.2, latest.getValue("coverage"), 0);
+
+            SonarSnapshotStore.StoredSnapshot previous = store.record(SERVER, snapshot("2014-08-26T19:05:49+0200"), measures(79, 1100));
+            assertEquals(1150, previous.getValue("violations"), 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void shouldNotShareDirectory() throws IOException {
+        SonarSnapshotStore store = new SonarSnapshotStore(directory);
+        try {
+            new SonarSnapshotStore(directory);
+            fail("the log is locked by the open store");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            store.close();
+        }
+
+        // unlocked once closed
+        new SonarSnapshotStore(directory).close();
+    }
+
+    private SonarSnapshot snapshot(String date) {
+        return new SonarSnapshot("org.codehaus.sonar:sonar", date, "4.5");
+    }
+
+    private List<SonarMeasure> measures(double coverage, double violations) {
+        return Arrays.asList(
+                new SonarMeasure("coverage", coverage, coverage + "%"),
+                new SonarMeasure("violations", violations, String.valueOf(violations)),
+                new SonarMeasure("alert_status", Double.NaN, "OK"));
+    }
+}
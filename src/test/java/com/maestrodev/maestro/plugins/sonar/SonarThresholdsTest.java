@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarThresholdsTest {
+
+    private final Map<String, SonarMeasureMeta> metas = new HashMap<String, SonarMeasureMeta>();
+
+    public SonarThresholdsTest() {
+        meta("coverage", "Coverage", SonarValueType.PERCENT, 1);
+        meta("violations", "Violations", SonarValueType.INT, -1);
+        meta("blocker_violations", "Blocker violations", SonarValueType.INT, -1);
+        meta("alert_status", "Alert", SonarValueType.LEVEL, 0);
+        meta("sqale_rating", "Maintainability rating", SonarValueType.RATING, -1);
+        meta("sqale_index", "Technical debt", SonarValueType.WORK_DUR, -1);
+    }
+
+    @Test
+    public void shouldPassMeasuresWithinThresholds() {
+        SonarThresholds thresholds = SonarThresholds.forRules(Arrays.asList(
+                "coverage >= 80%", "blocker_violations == 0", "violations 1500", "alert_status == OK",
+                "sqale_rating B", "sqale_index < 2d"));
+
+        assertArrayEquals(new String[]{"coverage", "blocker_violations", "violations", "alert_status", "sqale_rating", "sqale_index"},
+                thresholds.getMetricKeys());
+        assertTrue(thresholds.check(metas, measures(80.5, 0, 1200, "OK", 2, 900)));
+        assertEquals(Collections.emptyList(), thresholds.report(metas, measures(80.5, 0, 1200, "OK", 2, 900)));
+    }
+
+    @Test
+    public void shouldReportBrokenThresholds() {
+        SonarThresholds thresholds = SonarThresholds.forRules(Arrays.asList(
+                "coverage 80", "blocker_violations == 0", "violations 1500", "alert_status == OK", "sqale_rating B",
+                "complexity < 10"));
+        List<SonarMeasure> measures = measures(72.5, 3, 1600, "ERROR", 3, 900);
+
+        assertFalse(thresholds.check(metas, measures));
+        assertEquals(Arrays.asList(
+                "coverage 80: Coverage is 72.5, 7.5 below 80",
+                "blocker_violations == 0: Blocker violations is 3",
+                "violations 1500: Violations is 1600, 100 above 1500",
+                "alert_status == OK: Alert is ERROR",
+                "sqale_rating B: Maintainability rating is C",
+                "complexity < 10: unknown metric complexity"), thresholds.report(metas, measures));
+    }
+
+    @Test
+    public void shouldBreakRulesOfMissingOrMismatchedMeasures() {
+        SonarThresholds thresholds = SonarThresholds.forRules(Arrays.asList("coverage >= 80", "violations < 10%"));
+
+        assertEquals(Arrays.asList(
+                "coverage >= 80: no measure of Coverage",
+                "violations < 10%: the threshold does not apply to Violations (INT)"),
+                thresholds.report(metas, Arrays.asList(new SonarMeasure("violations", 5, "5"))));
+    }
+
+    @Test
+    public void shouldCompileRulesOnce() {
+        List<String> rules = Arrays.asList("coverage >= 80");
+        assertSame(SonarThresholds.forRules(rules), SonarThresholds.forRules(Arrays.asList("coverage >= 80")));
+        assertNull(SonarThresholds.forRules(Collections.<String>emptyList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidRule() {
+        SonarThresholds.forRules(Arrays.asList("coverage >="));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOrderedLevel() {
+        SonarThresholds.forRules(Arrays.asList("alert_status > OK"));
+    }
+
+    private void meta(String key, String name, SonarValueType type, int direction) {
+        metas.put(key, new SonarMeasureMeta(key, name, type, direction));
+    }
+
+    private List<SonarMeasure> measures(double coverage, double blockers, double violations, String alert, double rating, double debt) {
+        return Arrays.asList(
+                new SonarMeasure("coverage", coverage, coverage + "%"),
+                new SonarMeasure("blocker_violations", blockers, String.valueOf(blockers)),
+                new SonarMeasure("violations", violations, String.valueOf(violations)),
+                new SonarMeasure("alert_status", Double.NaN, alert),
+                new SonarMeasure("sqale_rating", rating, String.valueOf(rating)),
+                new SonarMeasure("sqale_index", debt, String.valueOf(debt)));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarTimeSeriesTest {
+
+    private SonarTimeSeries history;
+
+    @Before
+    public void setUp() throws IOException {
+        history = SonarClient.parseHistory(getClass().getResourceAsStream("/timemachine.json"));
+    }
+
+    @Test
+    public void shouldParseHistory() {
+        assertEquals(Arrays.asList("coverage", "violations"), history.getMetrics());
+        assertEquals(4, history.size());
+        assertEquals("2014-08-01T19:05:49+0200", history.getDate(0));
+        assertEquals(94.1, history.getValue("coverage", 0), 0);
+        assertTrue(Double.isNaN(history.getValue("violations", 1)));
+        assertTrue(Double.isNaN(history.getValue("unknown", 1)));
+    }
+
+    @Test
+    public void shouldKeepLatestAnalyses() {
+        SonarTimeSeries last = history.last(2);
+        assertEquals(2, last.size());
+        assertEquals("2014-08-15T19:05:49+0200", last.getDate(0));
+        assertEquals(120.0, last.getValue("violations", 1), 0);
+        assertSame(history, history.last(10));
+    }
+
+    @Test
+    public void shouldDownsampleIgnoringMissingValues() {
+        SonarTimeSeries sampled = history.downsample(2);
+        assertEquals(2, sampled.size());
+        assertEquals("2014-08-08T19:05:49+0200", sampled.getDate(0));
+        assertEquals("2014-08-24T19:05:49+0200", sampled.getDate(1));
+        assertEquals(94.2, sampled.getValue("coverage", 0), 0.0001);
+        assertEquals(130.0, sampled.getValue("violations", 0), 0);
+        assertEquals(122.0, sampled.getValue("violations", 1), 0);
+        assertSame(history, history.downsample(4));
+    }
+}
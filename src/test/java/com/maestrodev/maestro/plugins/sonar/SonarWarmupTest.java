@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarWarmupTest {
+
+    @Test
+    public void shouldParseServerVersion() throws IOException {
+        assertEquals("3.7", SonarClient.parseServerVersion(getClass().getResourceAsStream("/server.json")));
+    }
+
+    @Test
+    public void shouldReadCredentialsFromFile() throws IOException {
+        File file = File.createTempFile("sonar-warmup", ".properties");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write("username=admin\npassword=s3cr3t\n".getBytes("ISO-8859-1"));
+            } finally {
+                out.close();
+            }
+
+            Properties credentials = SonarWarmup.credentials(file.getPath());
+            assertEquals("admin", credentials.getProperty("username"));
+            assertEquals("s3cr3t", credentials.getProperty("password"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldLoadCatalogueAndOpenConnections() throws Exception {
+        final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+        SonarClient client = new SonarClient("http://warmup:9000", "admin", "admin");
+        client.metaCache = new SonarMetaCache(60000, 4);
+        client.transport = new SonarTransport() {
+            public InputStream get(String url) throws IOException {
+                requested.add(url);
+                if (url.endsWith("/api/server/version")) {
+                    return new ByteArrayInputStream("3.7\n".getBytes("UTF-8"));
+                }
+                return getClass().getResourceAsStream("/metrics.json");
+            }
+        };
+
+        SonarWarmup.warmUp(client, 3);
+
+        assertEquals(3, requested.size());
+        assertTrue(requested.contains("http://warmup:9000/api/metrics"));
+        assertNotNull(client.metaCache.getCatalogue(client.getCacheKey()));
+
+        // the first task finds the catalogue in the cache
+        client.getMetricCatalogue("org.codehaus.sonar:sonar");
+        assertEquals(3, requested.size());
+        assertEquals(1, client.getTimings().getCacheHits());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link SonarWorker} end to end over HTTP against a {@link FakeSonarServer}.
+ *
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarWorkerHttpTest {
+
+    private static final Logger logger = Logger.getLogger(SonarWorkerHttpTest.class.getName());
+
+    private FakeSonarServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSonarServer().start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldFetchMetricsOverHttp() throws Exception {
+        SonarMetrics metrics = SonarMetrics.getInstance();
+        long bytesRead = metrics.getBytesRead();
+        long wireBytesRead = metrics.getWireBytesRead();
+        SonarWorker worker = SonarLoadHarness.newWorker(server.getUrl(), "org.apache.commons:commons-lang3", false);
+        worker.fetchMetricsForProject();
+
+        assertNull(worker.getError());
+        Map<String, Object> tests = (Map<String, Object>) worker.getContextOutputs().get("tests");
+        assertNotNull(tests);
+        for (String metricName : SonarWorker.TESTS_METRIC_NAMES) {
+            assertNotNull(metricName, tests.get(metricName));
+        }
+
+        // the responses came gzipped
+        long received = metrics.getWireBytesRead() - wireBytesRead;
+        assertTrue(received > 0);
+        assertTrue(received < metrics.getBytesRead() - bytesRead);
+    }
+
+    @Test
+    public void shouldFailOnServerErrors() throws Exception {
+        server.setErrors(1, 500);
+        SonarWorker worker = SonarLoadHarness.newWorker(server.getUrl(), "org.apache.commons:commons-lang3", false);
+        worker.fetchMetricsForProject();
+
+        assertNotNull(worker.getError());
+        assertTrue(server.getErrors() > 0);
+    }
+
+    @Test
+    public void shouldSustainConcurrentFetches() throws Exception {
+        server.setLatency(2, 2);
+        SonarLoadHarness.Report report = new SonarLoadHarness(server.getUrl())
+                .fetches(200)
+                .concurrency(16)
+                .projects(20)
+                .run(server);
+        logger.info("load: " + report);
+
+        assertEquals(200, report.succeeded);
+        assertTrue(report.requests >= 200);
+        // the fetches share the pooled connections instead of opening one each
+        assertTrue(report.connections <= SonarConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    }
+}
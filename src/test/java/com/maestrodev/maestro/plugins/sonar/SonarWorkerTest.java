@@ -3,12 +3,23 @@
  */
 package com.maestrodev.maestro.plugins.sonar;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -17,9 +28,6 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 
-import us.monoid.web.JSONResource;
-import us.monoid.web.Resty;
-
 import com.maestrodev.maestro.plugins.StompConnectionFactory;
 
 /**
@@ -34,8 +42,9 @@ public class SonarWorkerTest {
     private BlockingConnection blockingConnection;
 
     private SonarWorker worker;
+    private Map<String, Object> fields;
 
-    private Resty restyMock;
+    private SonarTransport transportMock;
     private String url = "http://nemo.sonarqube.org";
 
     @Before
@@ -50,11 +59,13 @@ public class SonarWorkerTest {
         blockingConnection = mock(BlockingConnection.class);
         when(stompConnectionFactory.getConnection(Matchers.anyString(), Matchers.anyInt())).thenReturn(blockingConnection);
 
-        Map<String, Object> fields = new HashMap<String, Object>();
+        fields = new HashMap<String, Object>();
         fields.put("url", url);
         fields.put("username", null);
         fields.put("password", null);
         fields.put("projectKey", "org.apache.commons:commons-lang3");
+        // the mocked transport knows no server version, detection is tested on its own
+        fields.put("api", "legacy");
 
         Map<String, Object> workitem = new HashMap<String, Object>();
         workitem.put("fields", fields);
@@ -64,8 +75,11 @@ public class SonarWorkerTest {
         worker.setStompConfig(stompConfig);
         worker.setWorkitem(workitem);
 
-        restyMock = mock(Resty.class);
-        worker.getSonarClient().resty = restyMock;
+        transportMock = mock(SonarTransport.class);
+        worker.getSonarClient().transport = transportMock;
+        worker.getSonarClient().metaCache = new SonarMetaCache(SonarMetaCache.DEFAULT_TTL_MILLIS, SonarMetaCache.DEFAULT_MAX_ENTRIES);
+        worker.getSonarClient().singleFlight = new SonarSingleFlight(0);
+        worker.snapshotCache = new SonarSnapshotCache(SonarSnapshotCache.DEFAULT_MAX_ENTRIES);
     }
 
     @SuppressWarnings("unchecked")
@@ -73,28 +87,30 @@ public class SonarWorkerTest {
     public void shouldGetMetrics() throws IOException {
 
         // mock the responses
-        when(restyMock.json(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
-                new JSONResourceMock("/metrics.json"));
-        when(
-                restyMock
-                        .json(url
-                                + "/api/resources?resource=org.apache.commons:commons-lang3&metrics=coverage,branch_coverage,line_coverage,test_success_density,tests,test_failures,test_errors,test_execution_time"))
-                .thenReturn(new JSONResourceMock("/resources1.json"));
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/resource.json"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
         when(
-                restyMock
-                        .json(url
-                                + "/api/resources?resource=org.apache.commons:commons-lang3&metrics=violations_density,violations,blocker_violations,critical_violations,major_violations,minor_violations,info_violations"))
-                .thenReturn(new JSONResourceMock("/resources2.json"));
+                transportMock
+                        .get(url
+                                + "/api/resources?resource=org.apache.commons:commons-lang3&metrics=coverage,branch_coverage,line_coverage,test_success_density,tests,test_failures,test_errors,test_execution_time,violations_density,violations,blocker_violations,critical_violations,major_violations,minor_violations,info_violations"))
+                .thenReturn(fixture("/resources.json"));
 
         // this should put key/value pairs for our metrics in the context
         worker.fetchMetricsForProject();
 
+        // both metric groups are fetched in a single round-trip
+        verify(transportMock, times(1)).get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="));
+
         // ensure the right data got populated into the __context_outputs__
         Map<String, Object> fields = worker.getFields();
         Map<String, Object> context = worker.getContextOutputs();
         Map<String, Object> tests = (Map<String, Object>) context.get("tests");
         Map<String, Object> rules = (Map<String, Object>) context.get("rules");
 
+        assertEquals(false, context.get("cached"));
+
         Object testsList = context.get("testsList");
         Object rulesList = context.get("rulesList");
         assertNotNull(testsList);
@@ -123,9 +139,257 @@ public class SonarWorkerTest {
         logger.info("context: " + context);
     }
 
-    private class JSONResourceMock extends JSONResource {
-        public JSONResourceMock(String file) {
-            inputStream = SonarWorkerTest.class.getResourceAsStream(file);
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldReuseMetricsOfUnchangedSnapshot() throws IOException {
+
+        // the snapshot is probed on each run, the metrics are only fetched once
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/resource.json"), fixture("/resource.json"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                fixture("/resources.json"));
+
+        worker.fetchMetricsForProject();
+        assertEquals(false, worker.getContextOutputs().get("cached"));
+
+        worker.fetchMetricsForProject();
+        Map<String, Object> context = worker.getContextOutputs();
+        assertEquals(true, context.get("cached"));
+        Map<String, Object> tests = (Map<String, Object>) context.get("tests");
+        for (String metricName : SonarWorker.TESTS_METRIC_NAMES) {
+            assertNotNull(tests.get(metricName));
+        }
+
+        verify(transportMock, times(1)).get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="));
+        // the first fetch learns the snapshot from the measures, only the second one probes for it
+        verify(transportMock, times(1)).get(url + "/api/resources?resource=org.apache.commons:commons-lang3");
+    }
+
+    @Test
+    public void shouldFetchMetricsWhenSnapshotProbeFails() throws IOException {
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenThrow(
+                new SonarHttpException(500, "Injected failure"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                fixture("/resources.json"), fixture("/resources.json"));
+
+        worker.fetchMetricsForProject();
+        worker.fetchMetricsForProject();
+
+        assertNull(worker.getError());
+        assertEquals(false, worker.getContextOutputs().get("cached"));
+        verify(transportMock, times(2)).get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldSelectMetricsByDomain() throws IOException {
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/resource.json"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                fixture("/resources.json"));
+        fields.put("domains", Arrays.asList("complexity"));
+        fields.put("metricPatterns", "duplicated_lines");
+
+        worker.fetchMetricsForProject();
+
+        // the tests, rules and selected metrics are fetched together
+        verify(transportMock, times(1)).get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="));
+        verify(transportMock).get(Matchers.contains(",class_complexity,complexity,"));
+        verify(transportMock).get(Matchers.contains(",duplicated_lines"));
+
+        Map<String, Object> context = worker.getContextOutputs();
+        assertEquals(Arrays.asList("Complexity", "Duplication"), context.get("domainsList"));
+        Map<String, Object> domains = (Map<String, Object>) context.get("domains");
+        assertNotNull(domains.get("Complexity"));
+        assertNotNull(((Map<String, Object>) context.get("tests")).get("coverage"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldPickMeasuresApiFromServerVersion() throws IOException {
+        when(transportMock.get(url + "/api/server/version")).thenReturn(
+                new ByteArrayInputStream("7.9.1.27448\n".getBytes("UTF-8")));
+        when(transportMock.get(Matchers.startsWith(url + "/api/metrics/search?ps=500&p=1&"))).thenReturn(
+                fixture("/measures/metrics-search-1.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/metrics/search?ps=500&p=2&"))).thenReturn(
+                fixture("/measures/metrics-search-2.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/measures/component?component=org.apache.commons:commons-lang3&"))).thenReturn(
+                fixture("/measures/component.json"));
+        fields.put("api", "auto");
+        fields.put("cache", false);
+
+        worker.fetchMetricsForProject();
+
+        assertNull(worker.getError());
+        verify(transportMock, times(1)).get(url + "/api/server/version");
+        verify(transportMock, never()).get(Matchers.startsWith(url + "/api/resources"));
+        Map<String, Object> tests = (Map<String, Object>) worker.getContextOutputs().get("tests");
+        assertEquals(80.5, ((Map<String, Object>) tests.get("coverage")).get("value"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldGetMetricsForProjects() throws IOException {
+        fields.remove("projectKey");
+        fields.put("projectKeys", Arrays.asList("org.apache.commons:commons-lang3", "org.apache.commons:commons-io"));
+
+        // mock the responses, commons-io is unknown to the server
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&"))).thenReturn(
+                fixture("/resources.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-io&"))).thenThrow(
+                new IOException("Not found"));
+
+        worker.fetchMetricsForProjects();
+
+        Map<String, Object> context = worker.getContextOutputs();
+        Map<String, Object> projects = (Map<String, Object>) context.get("projects");
+        Map<String, Object> failures = (Map<String, Object>) context.get("failures");
+        Map<String, Object> batch = (Map<String, Object>) context.get("batch");
+        logger.info("context: " + context);
+
+        Map<String, Object> project = (Map<String, Object>) projects.get("org.apache.commons:commons-lang3");
+        Map<String, Object> tests = (Map<String, Object>) project.get("tests");
+        for (String metricName : SonarWorker.TESTS_METRIC_NAMES) {
+            assertNotNull(tests.get(metricName));
+        }
+        assertNotNull(failures.get("org.apache.commons:commons-io"));
+        assertEquals(2, batch.get("projects"));
+        assertEquals(1, batch.get("succeeded"));
+        assertEquals(1, batch.get("failed"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldExportMetrics() throws IOException {
+        File file = File.createTempFile("sonar-export", ".ndjson");
+        file.deleteOnExit();
+        fields.remove("projectKey");
+        fields.put("projectKeys", Arrays.asList("org.apache.commons:commons-lang3", "org.apache.commons:commons-io"));
+        fields.put("file", file.getPath());
+
+        // mock the responses, commons-io is unknown to the server
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&"))).thenReturn(
+                fixture("/resources.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-io&"))).thenThrow(
+                new IOException("Not found"));
+
+        worker.exportMetrics();
+
+        Map<String, Object> context = worker.getContextOutputs();
+        Map<String, Object> export = (Map<String, Object>) context.get("export");
+        Map<String, Object> failures = (Map<String, Object>) context.get("failures");
+        logger.info("context: " + context);
+
+        assertEquals("ndjson", export.get("format"));
+        assertEquals(2, export.get("projects"));
+        assertEquals(1L, export.get("exported"));
+        assertEquals(1, export.get("failed"));
+        assertNotNull(failures.get("org.apache.commons:commons-io"));
+        assertEquals(file.length(), export.get("bytes"));
+        assertTrue(file.length() > 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldAddDeltasSincePreviousAnalysis() throws IOException {
+        fields.put("cache", false);
+        File directory = File.createTempFile("sonar-store", "");
+        directory.delete();
+        SonarSnapshotStore store = new SonarSnapshotStore(directory);
+        worker.snapshotStore = store;
+        try {
+            store.record(url, new SonarSnapshot("org.apache.commons:commons-lang3", "2014-08-01T19:05:49+0200", "3.3"),
+                    Arrays.asList(new SonarMeasure("tests", 2500, "2,500"), new SonarMeasure("violations", 100, "100")));
+
+            when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                    fixture("/resource.json"));
+            when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                    fixture("/metrics.json"));
+            when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                    fixture("/resources.json"));
+
+            worker.fetchMetricsForProject();
+
+            Map<String, Object> context = worker.getContextOutputs();
+            Map<String, Object> tests = (Map<String, Object>) ((Map<String, Object>) context.get("tests")).get("tests");
+            Map<String, Object> coverage = (Map<String, Object>) ((Map<String, Object>) context.get("tests")).get("coverage");
+            assertEquals("2014-08-01T19:05:49+0200", context.get("deltaSince"));
+            assertEquals(56.0, tests.get("delta"));
+            assertEquals("no delta without a previous value", null, coverage.get("delta"));
+            assertEquals(2556.0, store.getLatest(url, "org.apache.commons:commons-lang3").getValue("tests"), 0);
+            // the analysis comes with the measures
+            verify(transportMock, never()).get(url + "/api/resources?resource=org.apache.commons:commons-lang3");
+        } finally {
+            store.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
         }
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldFailOnBrokenThresholds() throws IOException {
+        fields.put("thresholds", Arrays.asList("coverage >= 95", "tests > 0"));
+
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/resource.json"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                fixture("/resources.json"));
+
+        worker.fetchMetricsForProject();
+
+        // the metrics are still put in the context
+        Map<String, Object> context = worker.getContextOutputs();
+        assertNotNull(context.get("tests"));
+        assertEquals(false, context.get("thresholdsPassed"));
+        assertEquals(Arrays.asList("coverage >= 95: Coverage is 92.7, 2.3 below 95"), context.get("thresholdsBroken"));
+        assertNotNull(worker.getError());
+        assertTrue(worker.getError().contains("coverage >= 95: Coverage is 92.7, 2.3 below 95"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldPutCompactOutput() throws IOException {
+        fields.put("output", "compact");
+
+        when(transportMock.get(url + "/api/resources?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/resource.json"));
+        when(transportMock.get(url + "/api/metrics?resource=org.apache.commons:commons-lang3")).thenReturn(
+                fixture("/metrics.json"));
+        when(transportMock.get(Matchers.startsWith(url + "/api/resources?resource=org.apache.commons:commons-lang3&metrics="))).thenReturn(
+                fixture("/resources.json"));
+
+        worker.fetchMetricsForProject();
+
+        Map<String, Object> context = worker.getContextOutputs();
+        Map<String, Object> tests = (Map<String, Object>) context.get("tests");
+        List<Object> keys = (List<Object>) tests.get("keys");
+        List<Object> values = (List<Object>) tests.get("values");
+        List<Object> formattedValues = (List<Object>) tests.get("formattedValues");
+        assertEquals(Arrays.asList(SonarWorker.TESTS_METRIC_NAMES), keys);
+        assertEquals(context.get("testsList"), keys);
+        assertEquals(92.7, values.get(keys.indexOf("coverage")));
+        assertEquals("92.7%", formattedValues.get(keys.indexOf("coverage")));
+
+        // the names and types of the metrics come once
+        Map<String, Object> coverage = (Map<String, Object>) ((Map<String, Object>) context.get("metrics")).get("coverage");
+        assertEquals("Coverage", coverage.get(SonarMeasureMeta.MEASURE_NAME_KEY));
+        assertEquals("PERCENT", coverage.get(SonarMeasureMeta.MEASURE_VALUE_TYPE_KEY));
+    }
+
+    private InputStream fixture(String file) {
+        return SonarWorkerTest.class.getResourceAsStream(file);
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2013, MaestroDev. All rights reserved.
+ */
+package com.maestrodev.maestro.plugins.sonar;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author David Castro <dcastro@maestrodev.com>
+ */
+public class SonarWorstComponentsTest {
+
+    private Map<String, SonarMeasureMeta> metas;
+
+    @Before
+    public void setUp() throws Exception {
+        metas = SonarClient.parseMeasureMeta(getClass().getResourceAsStream("/metrics.json"));
+    }
+
+    @Test
+    public void shouldParseDirection() {
+        assertEquals(1, metas.get("coverage").getDirection());
+        assertEquals(-1, metas.get("violations").getDirection());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepWorstComponents() throws Exception {
+        SonarWorstComponents worst = new SonarWorstComponents(2, metas, Arrays.asList("coverage", "violations"));
+        long count = SonarClient.parseComponents(getClass().getResourceAsStream("/components.json"), worst);
+
+        assertEquals(4, count);
+        assertEquals(4, worst.getComponents());
+
+        Map<String, Object> context = worst.toContext();
+        List<Map<String, Object>> coverage = (List<Map<String, Object>>) context.get("coverage");
+        assertEquals(2, coverage.size());
+        assertEquals("ArrayUtils.java", coverage.get(0).get("name"));
+        assertEquals(71.5, coverage.get(0).get("value"));
+        assertEquals("71.5%", coverage.get(0).get("formattedValue"));
+        assertEquals("StringUtils.java", coverage.get(1).get("name"));
+
+        List<Map<String, Object>> violations = (List<Map<String, Object>>) context.get("violations");
+        assertEquals(2, violations.size());
+        assertEquals("ArrayUtils.java", violations.get(0).get("name"));
+        assertEquals("StringUtils.java", violations.get(1).get("name"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepFewerComponentsThanLimit() throws Exception {
+        SonarWorstComponents worst = new SonarWorstComponents(10, metas, Arrays.asList("coverage"));
+        SonarClient.parseComponents(getClass().getResourceAsStream("/components.json"), worst);
+
+        List<Map<String, Object>> coverage = (List<Map<String, Object>>) worst.toContext().get("coverage");
+        assertEquals(3, coverage.size());
+        assertEquals("Validate.java", coverage.get(2).get("name"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepOneComponentForNegativeLimit() throws Exception {
+        SonarWorstComponents worst = new SonarWorstComponents(-1, metas, Arrays.asList("coverage"));
+        SonarClient.parseComponents(getClass().getResourceAsStream("/components.json"), worst);
+
+        List<Map<String, Object>> coverage = (List<Map<String, Object>>) worst.toContext().get("coverage");
+        assertEquals(1, coverage.size());
+        assertEquals("ArrayUtils.java", coverage.get(0).get("name"));
+    }
+}